@@ -149,6 +149,8 @@ public class AvgRGBImage extends Configured implements Tool {
 		Job job = Job.getInstance();
 		// Set input format class which parses the input BioHIB and spawns map tasks
 		job.setInputFormatClass(BioHibInputFormat.class);
+		// Skip images of other formats before they are decoded
+		BioHibInputFormat.setImageFormats(job, BioHipiImageFormat.JPEG, BioHipiImageFormat.PNG);
 		// Set the driver, mapper, and reducer classes which express the computation
 		job.setJarByClass(AvgRGBImage.class);
 		job.setMapperClass(AvgRGBImageMapper.class);
@@ -109,6 +109,8 @@ public class CutNiftiImage extends Configured implements Tool {
 		Job job = Job.getInstance();
 		// Set input format class which parses the input BioHIB and spawns map tasks
 		job.setInputFormatClass(BioHibInputFormat.class);
+		// Skip images of other formats before they are decoded
+		BioHibInputFormat.setImageFormats(job, BioHipiImageFormat.NIFTI);
 		// Set the driver, mapper, and reducer classes which express the computation
 		job.setJarByClass(CutNiftiImage.class);
 		job.setMapperClass(CutNiftiImageMapper.class);
@@ -15,7 +15,9 @@ import org.apache.hadoop.util.ToolRunner;
 import org.biohipi.image.DicomImage;
 import org.biohipi.image.BioHipiImage;
 import org.biohipi.image.BioHipiImageHeader;
+import org.biohipi.image.BioHipiImageHeader.BioHipiImageFormat;
 import org.biohipi.image.BioHipiImageHeader.BioHipiKeyMetaData;
+import org.biohipi.imagebundle.BioHibInvertedIndex.MatchMode;
 import org.biohipi.imagebundle.mapreduce.BioHibInputFormat;
 
 /**
@@ -39,6 +41,7 @@ public class DicomDumpByName extends Configured implements Tool {
 		/**
 		 * For each image has returned a set of key / value pairs, which respectively 
 		 * indicate the BioHipiImageHeader metadata and DicomImage of the patient in question.
+		 * Images of other patients are already filtered out by the input format.
 		 */
 		public void map(BioHipiImageHeader key, BioHipiImage value, Context context)
 				throws IOException, InterruptedException {
@@ -46,8 +49,7 @@ public class DicomDumpByName extends Configured implements Tool {
 			if (!(value instanceof DicomImage))
 				return;
 
-			if ( (value != null) && ((key.getMetaData(BioHipiKeyMetaData.PATIENT_NAME)).toUpperCase().contains(name.toUpperCase())) )
-				context.write(new Text(key.toString()), (DicomImage) value);
+			context.write(new Text(key.toString()), (DicomImage) value);
 		}
 	} 
 
@@ -84,6 +86,11 @@ public class DicomDumpByName extends Configured implements Tool {
 		
 		// Set input format class which parses the input BioHIB and spawns map tasks
 		job.setInputFormatClass(BioHibInputFormat.class);
+		// Skip images of other formats before they are decoded
+		BioHibInputFormat.setImageFormats(job, BioHipiImageFormat.DICOM);
+
+		// Only read the images of the patient, using the inverted index of the BioHIB if available
+		BioHibInputFormat.setMetaDataFilter(job, BioHipiKeyMetaData.PATIENT_NAME, name, MatchMode.CONTAINS);
 		
 		// Set the driver, mapper, and reducer classes which express the computation
 		job.setJarByClass(DicomDumpByName.class);
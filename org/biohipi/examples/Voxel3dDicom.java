@@ -16,6 +16,7 @@ import org.biohipi.image.DicomImage;
 import org.biohipi.image.BioHipiImage;
 import org.biohipi.image.BioHipiImageHeader;
 import org.biohipi.image.BioHipiImageHeader.BioHipiKeyMetaData;
+import org.biohipi.image.BioHipiImageHeader.BioHipiImageFormat;
 import org.biohipi.imagebundle.mapreduce.BioHibInputFormat;
 
 import ij.ImageStack;
@@ -102,6 +103,8 @@ public class Voxel3dDicom extends Configured implements Tool {
 
 		// Set input format class which parses the input BioHIB and spawns map tasks
 		job.setInputFormatClass(BioHibInputFormat.class);
+		// Skip images of other formats before they are decoded
+		BioHibInputFormat.setImageFormats(job, BioHipiImageFormat.DICOM);
 
 		// Set the driver, mapper, and reducer classes which express the computation
 		job.setJarByClass(Voxel3dDicom.class);
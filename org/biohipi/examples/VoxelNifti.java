@@ -3,6 +3,7 @@ package org.biohipi.examples;
 import org.biohipi.image.BioHipiImage;
 import org.biohipi.image.BioHipiImageHeader;
 import org.biohipi.image.NiftiImage;
+import org.biohipi.image.BioHipiImageHeader.BioHipiImageFormat;
 import org.biohipi.imagebundle.mapreduce.BioHibInputFormat;
 import org.biohipi.util.niftijio.NiftiVolume;
 import org.apache.commons.io.FilenameUtils;
@@ -150,6 +151,8 @@ public class VoxelNifti extends Configured implements Tool {
 		job.setOutputValueClass(Double.class);
 
 		job.setInputFormatClass(BioHibInputFormat.class);
+		// Skip images of other formats before they are decoded
+		BioHibInputFormat.setImageFormats(job, BioHipiImageFormat.NIFTI);
 
 		job.setMapOutputKeyClass(Text.class);
 		job.setMapOutputValueClass(DoubleWritable.class);
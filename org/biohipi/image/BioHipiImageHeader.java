@@ -7,8 +7,13 @@ import org.json.simple.JSONValue;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.TreeMap;
 
 /**
  * The header information for a BioHipiImage. BioHipiImageHeader encapsulates universally available
@@ -300,6 +305,34 @@ public class BioHipiImageHeader implements WritableComparable<BioHipiImageHeader
 		}
 	}
 
+	/**
+	 * Computes a compact 64-bit fingerprint of the meta data, as stored in
+	 * the index file of a {@link org.biohipi.imagebundle.BioHipiImageBundle}.
+	 * Headers with the same meta data key/value pairs have the same
+	 * fingerprint, independently of the order in which they were added.
+	 *
+	 * @return the first 8 bytes of the SHA-1 digest of the sorted meta data
+	 */
+	public long getMetaDataFingerprint() {
+		try {
+			MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+			for (Map.Entry<String, String> entry : new TreeMap<String, String>(metaData).entrySet()) {
+				sha1.update(entry.getKey().getBytes(StandardCharsets.UTF_8));
+				if (entry.getValue() == null) {
+					sha1.update((byte) 1);
+				} else {
+					sha1.update((byte) 0);
+					sha1.update(entry.getValue().getBytes(StandardCharsets.UTF_8));
+				}
+				sha1.update((byte) 0);
+			}
+			return ByteBuffer.wrap(sha1.digest()).getLong();
+		} catch (NoSuchAlgorithmException e) {
+			System.err.println("SHA-1 digest not available in getMetaDataFingerprint()");
+			return 0;
+		}
+	}
+
 	/**
 	 * Recreates the general meta data from serialized bytes, usually
 	 * from the beginning of a HIB file.
@@ -421,6 +454,9 @@ public class BioHipiImageHeader implements WritableComparable<BioHipiImageHeader
 			byte[] metaDataBytes = new byte[len];
 			input.readFully(metaDataBytes, 0, len);
 			setMetaDataFromBytes(metaDataBytes);
+		} else {
+			// Do not keep the meta data of a reused header
+			metaData.clear();
 		}
 
 	}
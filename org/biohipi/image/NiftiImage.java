@@ -49,6 +49,18 @@ public class NiftiImage extends BioHipiImage {
 		niiVol = NiftiVolume.read(ip);
 	}
 	
+	/**
+	 * Refills this image in place with a new header and volume, reusing
+	 * the voxel array if the dimensions of the volume match.
+	 * 
+	 * @param ip input stream containing serialized image data
+	 * @param header with meta data information
+	 */
+	public void set(InputStream ip, BioHipiImageHeader imageHeader) throws IOException {
+		this.header = imageHeader;
+		niiVol = NiftiVolume.read(ip, niiVol);
+	}
+
 	/**
 	 * Creates a new NiftiImage with the data already set.
 	 * 
@@ -75,6 +75,31 @@ public class RasterImage extends BioHipiImage {
 	 */
 	public RasterImage(BioHipiImageHeader header, BufferedImage javaImage) {
 		this(header);
+		setPixels(javaImage);
+	}
+
+	/**
+	 * Refills this image in place with a new header and decoded image,
+	 * reusing the pixel array if it has the required size.
+	 * 
+	 * @param header with meta data information.
+	 * @param javaImage containing serialized image data.
+	 */
+	public void set(BioHipiImageHeader header, BufferedImage javaImage) {
+		this.header = header;
+		int size = this.getWidth()*this.getHeight()*this.getNumBands();
+		if (size < 0) {
+			throw new IllegalArgumentException("Invalid size of pixel array.");
+		}
+		if (size == 0) {
+			this.data = null;
+		} else if (this.data == null || this.data.length != size) {
+			this.data = new float[size];
+		}
+		setPixels(javaImage);
+	}
+
+	private void setPixels(BufferedImage javaImage) {
 
 		int w = javaImage.getWidth();
 		int h = javaImage.getHeight();
@@ -82,7 +107,7 @@ public class RasterImage extends BioHipiImage {
 		// Check that image dimensions in header match those in JPEG
 		if (w != this.getWidth() || h != this.getHeight()) {
 			System.out.println(String.format("Dimensions read from JPEG: %d x %d", w, h));
-			System.out.println(header);
+			System.out.println(this.header);
 			throw new IllegalArgumentException("Image dimensions in header do not match those in JPEG.");
 		}
 
@@ -32,10 +32,11 @@ public class DicomCodec implements ImageDecoder, ImageEncoder {
 
 	public BioHipiImageHeader decodeHeader(InputStream inputStream) throws IOException {
 
+		// Stop before the pixel data, so only the attributes are read
 		DicomInputStream dis = new DicomInputStream(inputStream);
 		Attributes dataset = null;
 		try {
-			dataset = dis.readDataset(-1, -1);
+			dataset = dis.readDataset(-1, Tag.PixelData);
 		} finally {
 			dis.close();
 		}
@@ -50,14 +50,14 @@ public class JpegCodec extends RasterCodec {
 
 		// read in each block to determine resolution and bit depth
 		for (;;) {
-			dis.read(data, 0, 4);
+			dis.readFully(data, 0, 4);
 			if ((data[0] & 0xff) != 0xff)
 				return null;
 			if ((data[1] & 0xff) == 0x01 || ((data[1] & 0xff) >= 0xd0 && (data[1] & 0xff) <= 0xd7))
 				continue;
 			long length = (((data[2] & 0xff) << 8) | (data[3] & 0xff)) - 2;
 			if ((data[1] & 0xff) == 0xc0 || (data[1] & 0xff) == 0xc2) {
-				dis.read(data);
+				dis.readFully(data);
 				height = ((data[1] & 0xff) << 8) | (data[2] & 0xff);
 				width = ((data[3] & 0xff) << 8) | (data[4] & 0xff);
 				depth = data[0] & 0xff;
@@ -57,6 +57,17 @@ public class NiftiCodec implements ImageDecoder, ImageEncoder {
 	public BioHipiImage decodeImage(InputStream inputStream, BioHipiImageHeader imageHeader) throws IllegalArgumentException, IOException {
 		return new NiftiImage(inputStream, imageHeader);
 	}
+
+	/**
+	 * Decodes an image into an existing {@link NiftiImage}, whose voxel
+	 * array is reused if the dimensions match.
+	 *
+	 * @return the refilled image
+	 */
+	public NiftiImage decodeImage(InputStream inputStream, BioHipiImageHeader imageHeader, NiftiImage image) throws IllegalArgumentException, IOException {
+		image.set(inputStream, imageHeader);
+		return image;
+	}
 	
 	@Override
 	public void encodeImage(BioHipiImage image, OutputStream outputStream) throws IllegalArgumentException, IOException {
@@ -74,8 +74,6 @@ public class PngCodec extends RasterCodec {
 	/** full color image mode. */
 	private static final byte COLOR_MODE = 2;
 
-	private CRC32 crc;
-
 	public static PngCodec getInstance() {
 		return staticObject;
 	}
@@ -376,15 +374,17 @@ public class PngCodec extends RasterCodec {
 			throw new IllegalArgumentException("PNG encoder supports only three band images.");
 		}
 
-		crc = new CRC32();
+		// Checksum of the current chunk, local so that the shared instance
+		// can encode several images concurrently
+		CRC32 crc = new CRC32();
 		int width = ((RasterImage) image).getWidth();
 		int height = ((RasterImage) image).getHeight();
 		final byte id[] = { -119, 80, 78, 71, 13, 10, 26, 10, 0, 0, 0, 13 };
-		write(os, id);
+		write(os, crc, id);
 		crc.reset();
-		write(os, "IHDR".getBytes());
-		write(os, width);
-		write(os, height);
+		write(os, crc, "IHDR".getBytes());
+		write(os, crc, width);
+		write(os, crc, height);
 		byte head[] = null;
 
 		int mode = COLOR_MODE;
@@ -399,8 +399,8 @@ public class PngCodec extends RasterCodec {
 			head = new byte[] { 8, 2, 0, 0, 0 };
 			break;
 		}
-		write(os, head);
-		write(os, (int) crc.getValue());
+		write(os, crc, head);
+		write(os, crc, (int) crc.getValue());
 		ByteArrayOutputStream compressed = new ByteArrayOutputStream(65536);
 		BufferedOutputStream bos = new BufferedOutputStream(new DeflaterOutputStream(compressed, new Deflater(9)));
 		switch (mode) {
@@ -426,25 +426,25 @@ public class PngCodec extends RasterCodec {
 			break;
 		}
 		bos.close();
-		write(os, compressed.size());
+		write(os, crc, compressed.size());
 		crc.reset();
-		write(os, "IDAT".getBytes());
-		write(os, compressed.toByteArray());
-		write(os, (int) crc.getValue());
-		write(os, 0);
+		write(os, crc, "IDAT".getBytes());
+		write(os, crc, compressed.toByteArray());
+		write(os, crc, (int) crc.getValue());
+		write(os, crc, 0);
 		crc.reset();
-		write(os, "IEND".getBytes());
-		write(os, (int) crc.getValue());
+		write(os, crc, "IEND".getBytes());
+		write(os, crc, (int) crc.getValue());
 		os.close();
 	}
 
-	private void write(OutputStream os, int i) throws IOException {
+	private void write(OutputStream os, CRC32 crc, int i) throws IOException {
 		byte b[] = { (byte) ((i >> 24) & 0xff), (byte) ((i >> 16) & 0xff), (byte) ((i >> 8) & 0xff),
 				(byte) (i & 0xff) };
-		write(os, b);
+		write(os, crc, b);
 	}
 
-	private void write(OutputStream os, byte b[]) throws IOException {
+	private void write(OutputStream os, CRC32 crc, byte b[]) throws IOException {
 		os.write(b);
 		crc.update(b);
 	}
@@ -42,4 +42,19 @@ public abstract class RasterCodec implements ImageDecoder, ImageEncoder {
 		return new RasterImage(imageHeader, javaImage);
 	}
 
+	/**
+	 * Decodes an image into an existing {@link RasterImage}, whose pixel
+	 * array is reused if the dimensions match (see
+	 * {@link RasterImage#set(BioHipiImageHeader, BufferedImage)}).
+	 *
+	 * @see ImageDecoder#decodeImage
+	 */
+	public RasterImage decodeImage(InputStream inputStream, BioHipiImageHeader imageHeader, RasterImage image) throws IllegalArgumentException, IOException {
+
+		BufferedImage javaImage = ImageIO.read(new BufferedInputStream(inputStream));
+
+		image.set(imageHeader, javaImage);
+		return image;
+	}
+
 }
@@ -0,0 +1,209 @@
+package org.biohipi.imagebundle;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.compress.CodecPool;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.Compressor;
+import org.apache.hadoop.io.compress.Decompressor;
+import org.apache.hadoop.util.ReflectionUtils;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Enumeration of the codecs that can be used to compress the image data of a
+ * record in the data file of a {@link BioHipiImageBundle}. The codec of each
+ * record is stored in the most significant byte of the image format field of
+ * its 12-byte signature, so records written before compression was introduced
+ * read as {@link #NONE}.
+ * <br>
+ * {@link #DEFLATE} is implemented with {@link java.util.zip}. The other codecs
+ * are provided by the Hadoop {@link CompressionCodec} of the corresponding class
+ * name, which may require the Hadoop native libraries. The codec is created once
+ * per configuration, and the (often native) compressors and decompressors of the
+ * streams it creates are borrowed from the Hadoop {@link CodecPool} and returned
+ * when the streams are closed.
+ * <br>
+ * The set of codecs is closed on purpose: the byte stored in the record
+ * signature must identify the codec in any job that reads the BioHIB, so a
+ * further codec is added as a new entry with the class name of its
+ * CompressionCodec rather than configured per job.
+ */
+public enum BioHibCompression {
+	NONE(0x0, null),
+	DEFLATE(0x1, null),
+	GZIP(0x2, "org.apache.hadoop.io.compress.GzipCodec"),
+	BZIP2(0x3, "org.apache.hadoop.io.compress.BZip2Codec"),
+	SNAPPY(0x4, "org.apache.hadoop.io.compress.SnappyCodec"),
+	LZ4(0x5, "org.apache.hadoop.io.compress.Lz4Codec");
+
+	private int compression;
+	private String codecClassName;
+
+	// Hadoop codec and the configuration it was created with
+	private CompressionCodec codec = null;
+	private Configuration codecConf = null;
+
+	/**
+	 * Creates a BioHibCompression from an int and the class name of the
+	 * Hadoop codec implementing it.
+	 */
+	BioHibCompression(int compression, String codecClassName) {
+		this.compression = compression;
+		this.codecClassName = codecClassName;
+	}
+
+	/**
+	 * Creates a BioHibCompression from an int.
+	 *
+	 * @param compression Integer representation of BioHibCompression.
+	 *
+	 * @return Associated BioHibCompression.
+	 *
+	 * @throws IllegalArgumentException if the parameter value does not correspond to a valid
+	 * BioHibCompression.
+	 */
+	public static BioHibCompression fromInteger(int compression) throws IllegalArgumentException {
+		for (BioHibCompression c : values()) {
+			if (c.compression == compression) {
+				return c;
+			}
+		}
+		throw new IllegalArgumentException(String.format("There is no BioHibCompression enum value " +
+				"associated with integer [%d]", compression));
+	}
+
+	/**
+	 * @return Integer representation of BioHibCompression.
+	 */
+	public int toInteger() {
+		return compression;
+	}
+
+	/**
+	 * Default BioHibCompression.
+	 *
+	 * @return BioHibCompression.NONE
+	 */
+	public static BioHibCompression getDefault() {
+		return NONE;
+	}
+
+	/**
+	 * Wraps an output stream so that bytes written to it are compressed.
+	 *
+	 * @param out stream receiving the compressed bytes
+	 * @param conf configuration used to create Hadoop codecs
+	 * @return compressing output stream, which must be closed to write the
+	 * remaining compressed bytes and release the compressor
+	 *
+	 * @throws IOException if the codec is not available
+	 */
+	public OutputStream createOutputStream(OutputStream out, Configuration conf) throws IOException {
+		switch (this) {
+		case NONE:
+			return out;
+		case DEFLATE:
+			return new DeflaterOutputStream(out);
+		default:
+			CompressionCodec codec = getCodec(conf);
+			final Compressor compressor = CodecPool.getCompressor(codec, conf);
+			final OutputStream compressedStream;
+			try {
+				compressedStream = codec.createOutputStream(out, compressor);
+			} catch (IOException | RuntimeException e) {
+				CodecPool.returnCompressor(compressor);
+				throw e;
+			}
+			return new OutputStream() {
+				@Override
+				public void write(int b) throws IOException {
+					compressedStream.write(b);
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					compressedStream.write(b, off, len);
+				}
+
+				@Override
+				public void flush() throws IOException {
+					compressedStream.flush();
+				}
+
+				@Override
+				public void close() throws IOException {
+					try {
+						compressedStream.close();
+					} finally {
+						CodecPool.returnCompressor(compressor);
+					}
+				}
+			};
+		}
+	}
+
+	/**
+	 * Wraps an input stream of compressed bytes so that reading from it
+	 * returns the decompressed bytes. Decompression happens while reading.
+	 *
+	 * @param in stream of compressed bytes
+	 * @param conf configuration used to create Hadoop codecs
+	 * @return decompressing input stream, which must be closed to release
+	 * the decompressor
+	 *
+	 * @throws IOException if the codec is not available
+	 */
+	public InputStream createInputStream(InputStream in, Configuration conf) throws IOException {
+		switch (this) {
+		case NONE:
+			return in;
+		case DEFLATE:
+			return new InflaterInputStream(in);
+		default:
+			CompressionCodec codec = getCodec(conf);
+			final Decompressor decompressor = CodecPool.getDecompressor(codec);
+			InputStream decompressedStream;
+			try {
+				decompressedStream = codec.createInputStream(in, decompressor);
+			} catch (IOException | RuntimeException e) {
+				CodecPool.returnDecompressor(decompressor);
+				throw e;
+			}
+			return new FilterInputStream(decompressedStream) {
+				@Override
+				public void close() throws IOException {
+					try {
+						super.close();
+					} finally {
+						CodecPool.returnDecompressor(decompressor);
+					}
+				}
+			};
+		}
+	}
+
+	/**
+	 * @return the Hadoop codec of this compression, created at the first
+	 * call with a configuration and reused while that configuration is
+	 * passed in
+	 */
+	private synchronized CompressionCodec getCodec(Configuration conf) throws IOException {
+		if (codec != null && codecConf == conf) {
+			return codec;
+		}
+		try {
+			Class<? extends CompressionCodec> codecClass = conf.getClassByName(codecClassName).asSubclass(CompressionCodec.class);
+			codec = ReflectionUtils.newInstance(codecClass, conf);
+			codecConf = conf;
+			return codec;
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Compression codec [" + codecClassName + "] not found for " + this + ".", e);
+		}
+	}
+
+}
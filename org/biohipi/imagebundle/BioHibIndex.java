@@ -0,0 +1,301 @@
+package org.biohipi.imagebundle;
+
+import org.biohipi.image.BioHipiImageHeader.BioHipiImageFormat;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * In-memory representation of the entries stored in the index file of a
+ * {@link BioHipiImageBundle}. The byte offsets to the end of each image record
+ * are kept in a primitive <code>long[]</code>, which is filled with bulk reads
+ * of the index file instead of one <code>readLong()</code> per entry.
+ * <br>
+ * Image record i occupies the bytes [{@link #getStartOffset(int)},
+ * {@link #getEndOffset(int)}) of the data file. Since offsets are stored in
+ * ascending order, the record containing any byte of the data file can be found
+ * with a binary search ({@link #findImageIndex(long)}).
+ * <br>
+ * Two versions of the index file exist. Version 1 entries contain only the end
+ * offset of the image record. Version 2 entries additionally hold the image
+ * header length, the image data length, the {@link BioHipiImageFormat} and a
+ * fingerprint of the meta data of the image record (see {@link #hasRecordInfo()}),
+ * so jobs can plan their work from the index file alone.
+ */
+public class BioHibIndex {
+
+	/** Index file version storing only end offsets (0 in the version field). */
+	public static final int VERSION_1 = 1;
+
+	/** Index file version storing end offset, lengths, format and fingerprint. */
+	public static final int VERSION_2 = 2;
+
+	/** Length in bytes of a version 1 index entry: end offset (8). */
+	public static final int ENTRY_LENGTH_V1 = 8;
+
+	/**
+	 * Length in bytes of a version 2 index entry: end offset (8), image
+	 * header length (4), image data length (4), image format (4) and meta
+	 * data fingerprint (8). As in the record signature, the most
+	 * significant byte of the image format holds the {@link
+	 * BioHibCompression} of the image data.
+	 */
+	public static final int ENTRY_LENGTH_V2 = 28;
+
+	// Number of index entries converted per bulk read
+	private static final int ENTRIES_PER_READ = 16 * 1024;
+
+	private final int version;
+	private final long[] endOffsets;
+
+	// Version 2 only, null for version 1 indexes
+	private final int[] imageHeaderLengths;
+	private final int[] imageLengths;
+	private final byte[] imageFormats;
+	private final byte[] compressions;
+	private final long[] fingerprints;
+
+	/**
+	 * Creates a version 1 index over the given end offsets.
+	 *
+	 * @param endOffsets byte offsets to the end of each image record, in
+	 * ascending order. The array is used directly, not copied.
+	 */
+	public BioHibIndex(long[] endOffsets) {
+		this.version = VERSION_1;
+		this.endOffsets = endOffsets;
+		this.imageHeaderLengths = null;
+		this.imageLengths = null;
+		this.imageFormats = null;
+		this.compressions = null;
+		this.fingerprints = null;
+	}
+
+	/**
+	 * Creates a version 2 index. All arrays must have the same length and
+	 * are used directly, not copied.
+	 *
+	 * @param endOffsets byte offsets to the end of each image record, in
+	 * ascending order
+	 * @param imageHeaderLengths length of the serialized image header of
+	 * each image record
+	 * @param imageLengths length of the image data of each image record
+	 * @param imageFormats integer representation of the {@link
+	 * BioHipiImageFormat} of each image record
+	 * @param compressions integer representation of the {@link
+	 * BioHibCompression} of the image data of each image record
+	 * @param fingerprints meta data fingerprint of each image record
+	 */
+	public BioHibIndex(long[] endOffsets, int[] imageHeaderLengths, int[] imageLengths, byte[] imageFormats, byte[] compressions, long[] fingerprints) {
+		this.version = VERSION_2;
+		this.endOffsets = endOffsets;
+		this.imageHeaderLengths = imageHeaderLengths;
+		this.imageLengths = imageLengths;
+		this.imageFormats = imageFormats;
+		this.compressions = compressions;
+		this.fingerprints = fingerprints;
+	}
+
+	/**
+	 * @param version index file version
+	 * @return length in bytes of one entry of an index file of the given
+	 * version
+	 *
+	 * @throws IllegalArgumentException if the version is unknown
+	 */
+	public static int getEntryLength(int version) throws IllegalArgumentException {
+		switch (version) {
+		case VERSION_1:
+			return ENTRY_LENGTH_V1;
+		case VERSION_2:
+			return ENTRY_LENGTH_V2;
+		default:
+			throw new IllegalArgumentException("Unknown BioHIB index version [" + version + "].");
+		}
+	}
+
+	/**
+	 * Reads the entries of a BioHIB index file. The stream position is not
+	 * modified since only positional reads are used.
+	 *
+	 * @param in input stream connected to the BioHIB index file
+	 * @param position byte offset of the first index entry
+	 * @param count number of entries to read
+	 * @param version version of the index file
+	 * @return index containing the entries read
+	 *
+	 * @throws IOException if the index file is shorter than expected
+	 */
+	public static BioHibIndex read(FSDataInputStream in, long position, int count, int version) throws IOException {
+
+		int entryLength = getEntryLength(version);
+
+		long[] endOffsets = new long[count];
+		int[] imageHeaderLengths = null;
+		int[] imageLengths = null;
+		byte[] imageFormats = null;
+		byte[] compressions = null;
+		long[] fingerprints = null;
+		if (version == VERSION_2) {
+			imageHeaderLengths = new int[count];
+			imageLengths = new int[count];
+			imageFormats = new byte[count];
+			compressions = new byte[count];
+			fingerprints = new long[count];
+		}
+
+		byte[] buffer = new byte[entryLength * Math.min(count, ENTRIES_PER_READ)];
+		for (int i = 0; i < count; i += ENTRIES_PER_READ) {
+			int n = Math.min(count - i, ENTRIES_PER_READ);
+			in.readFully(position + (long) entryLength * i, buffer, 0, entryLength * n);
+			ByteBuffer entries = ByteBuffer.wrap(buffer, 0, entryLength * n);
+			if (version == VERSION_1) {
+				entries.asLongBuffer().get(endOffsets, i, n);
+				continue;
+			}
+			for (int j = i; j < i + n; j++) {
+				endOffsets[j] = entries.getLong();
+				imageHeaderLengths[j] = entries.getInt();
+				imageLengths[j] = entries.getInt();
+				int imageFormatInt = entries.getInt();
+				imageFormats[j] = (byte) imageFormatInt;
+				compressions[j] = (byte) (imageFormatInt >>> 24);
+				fingerprints[j] = entries.getLong();
+			}
+		}
+
+		if (version == VERSION_1) {
+			return new BioHibIndex(endOffsets);
+		}
+		return new BioHibIndex(endOffsets, imageHeaderLengths, imageLengths, imageFormats, compressions, fingerprints);
+	}
+
+	/**
+	 * @return version of the index file this index was read from
+	 */
+	public int getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return true if the index holds the header length, data length, format
+	 * and meta data fingerprint of every image record (version 2)
+	 */
+	public boolean hasRecordInfo() {
+		return version >= VERSION_2;
+	}
+
+	/**
+	 * @return number of image records in the index
+	 */
+	public int size() {
+		return endOffsets.length;
+	}
+
+	/**
+	 * @param index zero-based index of an image record
+	 * @return byte offset to the beginning of the image record
+	 */
+	public long getStartOffset(int index) {
+		return index == 0 ? 0 : endOffsets[index - 1];
+	}
+
+	/**
+	 * @param index zero-based index of an image record
+	 * @return byte offset to the end of the image record
+	 */
+	public long getEndOffset(int index) {
+		return endOffsets[index];
+	}
+
+	/**
+	 * @param index zero-based index of an image record
+	 * @return length in bytes of the image record
+	 */
+	public long getLength(int index) {
+		return endOffsets[index] - getStartOffset(index);
+	}
+
+	/**
+	 * @param index zero-based index of an image record
+	 * @return length in bytes of the serialized image header, or -1 for a
+	 * version 1 index
+	 */
+	public int getImageHeaderLength(int index) {
+		return imageHeaderLengths == null ? -1 : imageHeaderLengths[index];
+	}
+
+	/**
+	 * @param index zero-based index of an image record
+	 * @return length in bytes of the image data as stored in the data
+	 * file (compressed with {@link #getCompression(int)}), or -1 for a
+	 * version 1 index
+	 */
+	public int getImageLength(int index) {
+		return imageLengths == null ? -1 : imageLengths[index];
+	}
+
+	/**
+	 * @param index zero-based index of an image record
+	 * @return storage format of the image, or {@link
+	 * BioHipiImageFormat#UNDEFINED} for a version 1 index
+	 */
+	public BioHipiImageFormat getImageFormat(int index) {
+		return imageFormats == null ? BioHipiImageFormat.UNDEFINED : BioHipiImageFormat.fromInteger(imageFormats[index]);
+	}
+
+	/**
+	 * @param index zero-based index of an image record
+	 * @return compression of the image data, or {@link
+	 * BioHibCompression#NONE} for a version 1 index
+	 */
+	public BioHibCompression getCompression(int index) {
+		return compressions == null ? BioHibCompression.NONE : BioHibCompression.fromInteger(compressions[index] & 0xff);
+	}
+
+	/**
+	 * @param index zero-based index of an image record
+	 * @return meta data fingerprint of the image (see {@link
+	 * org.biohipi.image.BioHipiImageHeader#getMetaDataFingerprint()}), or 0
+	 * for a version 1 index
+	 */
+	public long getMetaDataFingerprint(int index) {
+		return fingerprints == null ? 0 : fingerprints[index];
+	}
+
+	/**
+	 * @return total length in bytes of all image records in the data file
+	 */
+	public long getDataLength() {
+		return endOffsets.length == 0 ? 0 : endOffsets[endOffsets.length - 1];
+	}
+
+	/**
+	 * Finds the image record containing a byte of the data file with a
+	 * binary search of the offset list.
+	 *
+	 * @param byteOffset byte offset in the data file
+	 * @return zero-based index of the image record containing byteOffset,
+	 * or -1 if byteOffset is negative or past the last image record
+	 */
+	public int findImageIndex(long byteOffset) {
+		if (byteOffset < 0) {
+			return -1;
+		}
+		int i = Arrays.binarySearch(endOffsets, byteOffset);
+		// An exact match is the end of record i, i.e. the start of record i+1
+		i = i >= 0 ? i + 1 : -(i + 1);
+		return i < endOffsets.length ? i : -1;
+	}
+
+	/**
+	 * @return the underlying array of end offsets (not a copy)
+	 */
+	public long[] getEndOffsets() {
+		return endOffsets;
+	}
+
+}
@@ -0,0 +1,333 @@
+package org.biohipi.imagebundle;
+
+import org.biohipi.image.BioHipiImageHeader;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Inverted index over selected meta data keys of the image headers of a
+ * {@link BioHipiImageBundle}. For each indexed key (e.g., {@link
+ * org.biohipi.image.BioHipiImageHeader.BioHipiKeyMetaData#PATIENT_ID}) it maps
+ * every distinct value to the ascending list of indices of the image records
+ * whose header holds that value. The index is built while images are added to
+ * a BioHIB and stored in a sidecar file (<code>&lt;bundle&gt;.inv</code>), so jobs
+ * can locate the records of, for example, a single patient without reading
+ * the data file.
+ * <br>
+ * BioHIB inverted index file structure:
+ * BOF
+ * 4 bytes (int): magic signature (0x81911b49)
+ * 4 bytes (int): inverted index file version (1)
+ * 12 bytes: reserved for future use
+ * 4 bytes: number of bytes to skip to reach start of key list
+ * 4 bytes (int): number of indexed keys
+ * [key (Text), 8 byte section length, section]*
+ * EOF
+ * <br>
+ * Each key section holds the number of distinct values (VInt) followed by,
+ * for every value in ascending order, the value (Text), the number of
+ * records (VInt) and the record indices as VInt deltas.
+ */
+public class BioHibInvertedIndex {
+
+	/** Magic signature at the beginning of a BioHIB inverted index file. */
+	public static final int MAGIC = 0x81911b49;
+
+	/** Version of the inverted index files written by {@link BioHipiImageBundle}. */
+	public static final int VERSION_1 = 1;
+
+	/**
+	 * How a meta data value is compared with the value looked up.
+	 */
+	public enum MatchMode {
+		/** Values are equal. */
+		EXACT,
+		/** Values are equal, ignoring case. */
+		IGNORE_CASE,
+		/** Meta data value starts with the value looked up. */
+		PREFIX,
+		/** Meta data value contains the value looked up, ignoring case. */
+		CONTAINS;
+
+		/**
+		 * @param metaDataValue value stored in an image header
+		 * @param value value looked up
+		 * @return true if metaDataValue matches value in this mode
+		 */
+		public boolean matches(String metaDataValue, String value) {
+			if (metaDataValue == null || value == null) {
+				return false;
+			}
+			switch (this) {
+			case EXACT:
+				return metaDataValue.equals(value);
+			case IGNORE_CASE:
+				return metaDataValue.equalsIgnoreCase(value);
+			case PREFIX:
+				return metaDataValue.startsWith(value);
+			default:
+				return metaDataValue.toUpperCase().contains(value.toUpperCase());
+			}
+		}
+	}
+
+	// Growable list of record indices, appended in ascending order
+	private static class Postings {
+		private int[] records = new int[4];
+		private int size = 0;
+
+		private void add(int record) {
+			if (size == records.length) {
+				records = Arrays.copyOf(records, size * 2);
+			}
+			records[size++] = record;
+		}
+	}
+
+	// Indexed key -> value -> postings, values sorted for prefix lookups
+	private final Map<String, TreeMap<String, Postings>> keys = new LinkedHashMap<String, TreeMap<String, Postings>>();
+
+	/**
+	 * Creates an empty inverted index over the given meta data keys.
+	 *
+	 * @param keys meta data keys to index
+	 */
+	public BioHibInvertedIndex(String... keys) {
+		for (String key : keys) {
+			this.keys.put(key, new TreeMap<String, Postings>());
+		}
+	}
+
+	/**
+	 * Adds the values of the indexed keys of an image header to the index.
+	 * Records must be added in ascending order of their index.
+	 *
+	 * @param header image header of the record
+	 * @param record zero-based index of the image record in the BioHIB
+	 */
+	public void add(BioHipiImageHeader header, int record) {
+		for (Map.Entry<String, TreeMap<String, Postings>> entry : keys.entrySet()) {
+			String value = header.getMetaData(entry.getKey());
+			if (value == null) {
+				continue;
+			}
+			Postings postings = entry.getValue().get(value);
+			if (postings == null) {
+				postings = new Postings();
+				entry.getValue().put(value, postings);
+			}
+			postings.add(record);
+		}
+	}
+
+	/**
+	 * @return The indexed meta data keys
+	 */
+	public Set<String> getKeys() {
+		return Collections.unmodifiableSet(keys.keySet());
+	}
+
+	/**
+	 * @param key meta data key
+	 * @return true if the values of key are indexed
+	 */
+	public boolean containsKey(String key) {
+		return keys.containsKey(key);
+	}
+
+	/**
+	 * @param key indexed meta data key
+	 * @return The distinct values of key, in ascending order
+	 */
+	public Set<String> getValues(String key) {
+		TreeMap<String, Postings> values = keys.get(key);
+		return values == null ? Collections.<String>emptySet() : Collections.unmodifiableSet(values.keySet());
+	}
+
+	/**
+	 * Looks up the image records whose meta data value for a key is equal
+	 * to a value.
+	 *
+	 * @param key indexed meta data key
+	 * @param value meta data value
+	 * @return ascending indices of the matching image records
+	 *
+	 * @throws IllegalArgumentException if key is not indexed
+	 */
+	public int[] lookup(String key, String value) throws IllegalArgumentException {
+		return lookup(key, value, MatchMode.EXACT);
+	}
+
+	/**
+	 * Looks up the image records whose meta data value for a key matches a
+	 * value. Exact and prefix matches are answered from the sorted value
+	 * list, the other modes compare against every distinct value of the key.
+	 *
+	 * @param key indexed meta data key
+	 * @param value value to match
+	 * @param mode how values are matched
+	 * @return ascending indices of the matching image records, without
+	 * duplicates
+	 *
+	 * @throws IllegalArgumentException if key is not indexed
+	 */
+	public int[] lookup(String key, String value, MatchMode mode) throws IllegalArgumentException {
+		TreeMap<String, Postings> values = keys.get(key);
+		if (values == null) {
+			throw new IllegalArgumentException("Meta data key [" + key + "] is not indexed.");
+		}
+		Map<String, Postings> candidates;
+		switch (mode) {
+		case EXACT:
+			Postings postings = values.get(value);
+			return postings == null ? new int[0] : Arrays.copyOf(postings.records, postings.size);
+		case PREFIX:
+			candidates = values.subMap(value, true, value + Character.MAX_VALUE, true);
+			break;
+		default:
+			candidates = values;
+		}
+
+		// Merge the postings of all matching values
+		int size = 0;
+		List<Postings> matches = new ArrayList<Postings>();
+		for (Map.Entry<String, Postings> entry : candidates.entrySet()) {
+			if (mode.matches(entry.getKey(), value)) {
+				matches.add(entry.getValue());
+				size += entry.getValue().size;
+			}
+		}
+		int[] records = new int[size];
+		int n = 0;
+		for (Postings p : matches) {
+			System.arraycopy(p.records, 0, records, n, p.size);
+			n += p.size;
+		}
+		Arrays.sort(records);
+		int distinct = 0;
+		for (int i = 0; i < n; i++) {
+			if (distinct == 0 || records[distinct - 1] != records[i]) {
+				records[distinct++] = records[i];
+			}
+		}
+		return distinct == n ? records : Arrays.copyOf(records, distinct);
+	}
+
+	/**
+	 * Writes the inverted index to a file.
+	 *
+	 * @param fs The {@link FileSystem} where the file is created
+	 * @param path The {@link Path} of the file, overwritten if it exists
+	 *
+	 * @throws IOException if the file cannot be written
+	 */
+	public void write(FileSystem fs, Path path) throws IOException {
+		DataOutputStream out = new DataOutputStream(fs.create(path));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION_1);
+			out.writeInt(0);
+			out.writeLong(0);
+			out.writeInt(0);
+			out.writeInt(keys.size());
+			for (Map.Entry<String, TreeMap<String, Postings>> entry : keys.entrySet()) {
+				ByteArrayOutputStream section = new ByteArrayOutputStream();
+				DataOutputStream sectionOutput = new DataOutputStream(section);
+				WritableUtils.writeVInt(sectionOutput, entry.getValue().size());
+				for (Map.Entry<String, Postings> value : entry.getValue().entrySet()) {
+					Text.writeString(sectionOutput, value.getKey());
+					Postings postings = value.getValue();
+					WritableUtils.writeVInt(sectionOutput, postings.size);
+					int last = 0;
+					for (int i = 0; i < postings.size; i++) {
+						WritableUtils.writeVInt(sectionOutput, postings.records[i] - last);
+						last = postings.records[i];
+					}
+				}
+				sectionOutput.flush();
+				Text.writeString(out, entry.getKey());
+				out.writeLong(section.size());
+				section.writeTo(out);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Reads an inverted index file.
+	 *
+	 * @param fs The {@link FileSystem} where the file resides
+	 * @param path The {@link Path} to the file
+	 * @param keys meta data keys to load, all keys stored in the file if
+	 * none are given. Sections of other keys are skipped.
+	 * @return inverted index over the loaded keys that are present in the
+	 * file
+	 *
+	 * @throws IOException if the file cannot be read or is not a BioHIB
+	 * inverted index file
+	 */
+	public static BioHibInvertedIndex read(FileSystem fs, Path path, String... keys) throws IOException {
+		FSDataInputStream in = fs.open(path);
+		try {
+			if (in.readInt() != MAGIC) {
+				throw new IOException("Corrupted BioHIB inverted index file [" + path.getName() + "]: signature mismatch.");
+			}
+			int version = in.readInt();
+			if (version != VERSION_1) {
+				throw new IOException("Unsupported BioHIB inverted index file version [" + version + "].");
+			}
+			in.readInt();
+			in.readLong();
+			int skipOver = in.readInt();
+			in.seek(in.getPos() + skipOver);
+
+			BioHibInvertedIndex index = new BioHibInvertedIndex();
+			int keyCount = in.readInt();
+			for (int k = 0; k < keyCount; k++) {
+				String key = Text.readString(in);
+				long sectionLength = in.readLong();
+				if (keys.length > 0 && !Arrays.asList(keys).contains(key)) {
+					in.seek(in.getPos() + sectionLength);
+					continue;
+				}
+				TreeMap<String, Postings> values = new TreeMap<String, Postings>();
+				int valueCount = WritableUtils.readVInt(in);
+				for (int v = 0; v < valueCount; v++) {
+					String value = Text.readString(in);
+					Postings postings = new Postings();
+					int size = WritableUtils.readVInt(in);
+					postings.records = new int[Math.max(size, 1)];
+					int last = 0;
+					for (int i = 0; i < size; i++) {
+						last += WritableUtils.readVInt(in);
+						postings.records[i] = last;
+					}
+					postings.size = size;
+					values.put(value, postings);
+				}
+				index.keys.put(key, values);
+			}
+			return index;
+		} finally {
+			in.close();
+		}
+	}
+
+}
@@ -0,0 +1,124 @@
+package org.biohipi.imagebundle;
+
+import org.biohipi.image.BioHipiImageHeader;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * Reads the image headers of a {@link BioHipiImageBundle} from its meta data
+ * sidecar file (<code>&lt;bundle&gt;.meta</code>) instead of its data file. The
+ * sidecar holds a copy of the serialized {@link BioHipiImageHeader} of every
+ * image record in index order, so iterating over the meta data of a BioHIB
+ * reads kilobytes of headers rather than the complete image data.
+ * <br>
+ * BioHIB meta data file structure:
+ * BOF
+ * 4 bytes (int): magic signature (0x81911b4d)
+ * 4 bytes (int): meta data file version (1)
+ * 12 bytes: reserved for future use
+ * 4 bytes: number of bytes to skip to reach start of header list
+ * [serialized image header (see {@link BioHipiImageHeader#write})]*
+ * EOF
+ */
+public class BioHibMetaReader {
+
+	/** Magic signature at the beginning of a BioHIB meta data file. */
+	public static final int MAGIC = 0x81911b4d;
+
+	/** Version of the meta data files written by {@link BioHipiImageBundle}. */
+	public static final int VERSION_1 = 1;
+
+	// Buffer size of the input stream, headers are small and read sequentially
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private DataInputStream metaInputStream = null;
+
+	// Zero-based index of the current image header, -1 before the first
+	private int currentIndex = -1;
+	private BioHipiImageHeader imageHeader = null;
+
+	/**
+	 * Opens a BioHIB meta data file and reads its file header.
+	 *
+	 * @param fs The {@link FileSystem} where the meta data file resides
+	 * @param path The {@link Path} to the meta data file
+	 *
+	 * @throws IOException if the file cannot be opened or is not a BioHIB
+	 * meta data file
+	 */
+	public BioHibMetaReader(FileSystem fs, Path path) throws IOException {
+		metaInputStream = new DataInputStream(new BufferedInputStream(fs.open(path), BUFFER_SIZE));
+		try {
+			if (metaInputStream.readInt() != MAGIC) {
+				throw new IOException("Corrupted BioHIB meta data file [" + path.getName() + "]: signature mismatch.");
+			}
+			int version = metaInputStream.readInt();
+			if (version != VERSION_1) {
+				throw new IOException("Unsupported BioHIB meta data file version [" + version + "].");
+			}
+			metaInputStream.readInt();
+			metaInputStream.readLong();
+			int skipOver = metaInputStream.readInt();
+			if (skipOver > 0) {
+				metaInputStream.readFully(new byte[skipOver]);
+			}
+		} catch (IOException e) {
+			metaInputStream.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Reads the next image header of the meta data file.
+	 *
+	 * @return true if the next image header was read, false if there are
+	 * no more image headers
+	 *
+	 * @throws IOException if the meta data file is truncated or malformed
+	 */
+	public boolean nextHeader() throws IOException {
+		imageHeader = null;
+		metaInputStream.mark(4);
+		if (metaInputStream.read() < 0) {
+			return false;
+		}
+		metaInputStream.reset();
+		try {
+			imageHeader = new BioHipiImageHeader(metaInputStream);
+		} catch (EOFException e) {
+			throw new IOException("Truncated BioHIB meta data file at image header [" + (currentIndex + 1) + "].", e);
+		}
+		currentIndex++;
+		return true;
+	}
+
+	/**
+	 * @return Image header read by the last call to {@link #nextHeader()},
+	 * null if there is none
+	 */
+	public BioHipiImageHeader getCurrentKey() {
+		return imageHeader;
+	}
+
+	/**
+	 * @return Zero-based index of the current image header, which is also
+	 * the index of its image record in the BioHIB index and data files
+	 */
+	public int getCurrentIndex() {
+		return currentIndex;
+	}
+
+	public void close() throws IOException {
+		if (metaInputStream != null) {
+			metaInputStream.close();
+			metaInputStream = null;
+		}
+	}
+
+}
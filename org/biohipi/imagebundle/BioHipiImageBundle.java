@@ -3,26 +3,61 @@ package org.biohipi.imagebundle;
 import org.biohipi.image.BioHipiImageHeader;
 import org.biohipi.image.io.CodecManager;
 import org.biohipi.image.io.ImageDecoder;
+import org.biohipi.image.io.NiftiCodec;
+import org.biohipi.image.io.RasterCodec;
 import org.biohipi.image.BioHipiImageHeader.BioHipiImageFormat;
 import org.biohipi.image.BioHipiImage;
+import org.biohipi.image.NiftiImage;
+import org.biohipi.image.RasterImage;
+import org.biohipi.util.ByteBufferInputStream;
 import org.biohipi.util.ByteUtils;
 
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.io.input.CloseShieldInputStream;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.ChecksumFileSystem;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
 import org.apache.hadoop.fs.Path;
-
+import org.apache.hadoop.fs.RawLocalFileSystem;
+import org.apache.hadoop.fs.ReadOption;
+import org.apache.hadoop.io.ByteBufferPool;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.ElasticByteBufferPool;
+import org.apache.hadoop.io.IOUtils;
+
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.EOFException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
 
 /**
  * A BioHipiImageBundle (BioHIB) is the primary representation for a
@@ -41,6 +76,24 @@ import java.util.List;
  * metadata + image pixel data) in the data file. The data file is
  * composed of a contiguous sequence of image records.
  *
+ * Index files written by this class are version 2 (see {@link
+ * BioHibIndex}): along with the end offset, each index entry holds the
+ * image header length, image data length, storage format and a meta data
+ * fingerprint of its image record. Version 1 index files, which only
+ * store end offsets, can still be read.
+ *
+ * A third, optional sidecar file (<code>&lt;bundle&gt;.meta</code>) holds a
+ * copy of the image header of every image record in index order. It is
+ * written along with the index and data files and can be read with {@link
+ * #openMetaReader()} to scan the meta data of a BioHIB without reading its
+ * data file.
+ *
+ * If meta data keys are selected with {@link #setInvertedIndexKeys} (or
+ * the <code>hipi.bundle.index.keys</code> configuration property), an
+ * inverted index mapping their values to image indices is written to a
+ * fourth file (<code>&lt;bundle&gt;.inv</code>), see {@link
+ * BioHibInvertedIndex}.
+ *
  * @see <a href="http://hipi.cs.virginia.edu/">HIPI Project Homepage</a>
  */
 
@@ -55,8 +108,134 @@ public class BioHipiImageBundle {
 	 */
 	public static class BioHibReader {
 
+		private static final Log LOG = LogFactory.getLog(BioHibReader.class);
+
+		/**
+		 * Image record read from the data file without decoding its image
+		 * header, as passed from the prefetch thread to the reader.
+		 */
+		private static class RawRecord {
+			private long offset;
+			private int imageHeaderLength;
+			private int imageLength;
+			private BioHibCompression compression;
+			private BioHipiImageFormat imageFormat;
+			private byte[] imageHeaderBytes;
+			private byte[] imageBytes;
+		}
+
+		/**
+		 * Background thread reading the raw records that follow the
+		 * current one through its own BioHibReader, so that reading the
+		 * next records overlaps with processing the current one. Records
+		 * are queued until either the record or the byte limit is reached;
+		 * a single record larger than the byte limit is still queued when
+		 * the queue is empty.
+		 */
+		private static class Prefetcher implements Runnable {
+
+			private final BioHibReader source;
+			private final int maxRecords;
+			private final long maxBytes;
+
+			private final ArrayDeque<RawRecord> queue = new ArrayDeque<RawRecord>();
+			private long queuedBytes = 0;
+			private boolean done = false;
+			private boolean stopped = false;
+			private IOException error = null;
+			private final Thread thread;
+
+			private Prefetcher(BioHibReader source, int maxRecords, long maxBytes) {
+				this.source = source;
+				this.maxRecords = maxRecords;
+				this.maxBytes = maxBytes;
+				thread = new Thread(this, "BioHibReader prefetcher");
+				thread.setDaemon(true);
+				thread.start();
+			}
+
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						RawRecord record = source.readRawRecord();
+						synchronized (this) {
+							if (record == null) {
+								break;
+							}
+							long length = record.imageHeaderLength + record.imageLength;
+							while (!stopped && !queue.isEmpty() && (queue.size() >= maxRecords || queuedBytes + length > maxBytes)) {
+								wait();
+							}
+							if (stopped) {
+								break;
+							}
+							queue.add(record);
+							queuedBytes += length;
+							notifyAll();
+						}
+					}
+				} catch (IOException e) {
+					synchronized (this) {
+						error = e;
+					}
+				} catch (InterruptedException e) {
+					// Stopped while waiting for space in the queue
+				} finally {
+					synchronized (this) {
+						done = true;
+						notifyAll();
+					}
+					try {
+						source.close();
+					} catch (IOException e) {
+						System.err.println("IO exception while closing prefetched BioHIB data file: " + e.getMessage());
+					}
+				}
+			}
+
+			/**
+			 * Takes the next record from the queue, waiting for the
+			 * prefetch thread if necessary.
+			 *
+			 * @return the next record, or null at the end of the segment
+			 *
+			 * @throws IOException if the prefetch thread failed to read the
+			 * next record
+			 */
+			private synchronized RawRecord take() throws IOException {
+				while (queue.isEmpty() && !done) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						throw new InterruptedIOException("Interrupted while waiting for prefetched BioHIB image record.");
+					}
+				}
+				RawRecord record = queue.poll();
+				if (record == null) {
+					if (error != null) {
+						throw error;
+					}
+					return null;
+				}
+				queuedBytes -= record.imageHeaderLength + record.imageLength;
+				notifyAll();
+				return record;
+			}
+
+			private synchronized void stop() {
+				stopped = true;
+				queue.clear();
+				notifyAll();
+			}
+		}
+
+		// File system and path of the data file
+		private FileSystem fs = null;
+		private Path path = null;
+
 		// Input stream connected to HIB data file
-		private DataInputStream dataInputStream = null;
+		private FSDataInputStream dataInputStream = null;
 
 		// Current position and start/end offsets in input stream
 		private long currentOffset = 0;
@@ -68,12 +247,57 @@ public class BioHipiImageBundle {
 		// data, and image storage format in that order
 		private byte sig[] = new byte[12];
 
+		// Configuration of the file system, used to create decompressors
+		private Configuration conf = null;
+
+		// Memory-mapped mode. Local data files are mapped through a
+		// FileChannel in windows of at most MAX_MAPPING_SIZE bytes, any
+		// other file system is read with zero-copy (short-circuit) reads
+		// through the enhanced byte buffer access of FSDataInputStream.
+		private static final long MAX_MAPPING_SIZE = Integer.MAX_VALUE;
+		private boolean memoryMapped = false;
+		private FileChannel dataChannel = null;
+		private long dataChannelSize = 0;
+		private MappedByteBuffer dataMapping = null;
+		private long mappingOffset = 0;
+		private ByteBufferPool bufferPool = null;
+		private ByteBuffer zeroCopyBuffer = null;
+
+		// Lengths and compression parsed from the signature of the
+		// current record
+		private int imageHeaderLength = 0;
+		private int imageLength = 0;
+		private BioHibCompression compression = BioHibCompression.NONE;
+
+		// Byte offset of the signature of the current record
+		private long recordOffset = -1;
+
 		// Current image, accessed with calls to getCurrentKey and
-		// getCurrentValue
+		// getCurrentValue. The image is decoded on the first call to
+		// getCurrentValue.
 		private BioHipiImageFormat imageFormat = BioHipiImageFormat.UNDEFINED;
 		private byte[] imageBytes = null;
+		private ByteBuffer imageBuffer = null;
 		private BioHipiImageHeader imageHeader = null;
 		private BioHipiImage image = null;
+		private boolean imageDecoded = false;
+		private Exception decodeException = null;
+
+		// Prefetching limits (prefetching is off if prefetchRecords is 0)
+		// and the running prefetcher, started at the first read
+		private int prefetchRecords = 0;
+		private long prefetchBytes = 0;
+		private Prefetcher prefetcher = null;
+
+		// Object reuse. Image headers and image data read from the
+		// stream go to recycled buffers, and the current header and image
+		// are refilled in place instead of being created for each record.
+		private boolean reuseObjects = false;
+		private ByteBuffer headerBuffer = null;
+		private ByteBuffer payloadBuffer = null;
+		private final DataInputBuffer headerInput = new DataInputBuffer();
+		private BioHipiImageHeader reusedHeader = null;
+		private BioHipiImage reusedImage = null;
 
 		/**
 		 * Creates a BioHibReader to read records (image headers / image
@@ -88,19 +312,57 @@ public class BioHipiImageBundle {
 		 * @throws IOException
 		 */
 		public BioHibReader(FileSystem fs, Path path, long start, long end) throws IOException {
+			this(fs, path, start, end, false);
+		}
+
+		/**
+		 * Creates a BioHibReader to read records from a contiguous segment
+		 * of a BioHIB data file, optionally in memory-mapped mode. In
+		 * memory-mapped mode a data file on the local file system is mapped
+		 * into memory and every record is handed out as a {@link ByteBuffer}
+		 * slice of the mapping, without copying the image header or the
+		 * image data. Data files on other file systems (e.g., HDFS) are read
+		 * with zero-copy reads, which map local block replicas when
+		 * short-circuit reads are enabled and fall back to a pooled buffer
+		 * otherwise.
+		 * 
+		 * @param fs The {@link FileSystem} where the BioHIB data file resides
+		 * @param path The {@link Path} to the BioHIB data file
+		 * @param start The byte offset to beginning of segment
+		 * @param end The byte offset to end of segment
+		 * @param memoryMapped true to read records from a memory mapping
+		 * of the data file
+		 *
+		 * @throws IOException
+		 */
+		public BioHibReader(FileSystem fs, Path path, long start, long end, boolean memoryMapped) throws IOException {
+
+			this.fs = fs;
+			this.path = path;
+			this.memoryMapped = memoryMapped;
+			this.conf = fs.getConf();
+
+			File localFile = memoryMapped ? toLocalFile(fs, path) : null;
+			if (localFile != null) {
+				// Map local data file, the mapping itself is created lazily
+				// at the first record
+				RandomAccessFile dataFile = new RandomAccessFile(localFile, "r");
+				dataChannel = dataFile.getChannel();
+				dataChannelSize = dataChannel.size();
+				startOffset = start;
+			} else {
 
-			// Create input stream for BioHIB data file
-			dataInputStream = new DataInputStream(fs.open(path));
+				// Create input stream for BioHIB data file
+				dataInputStream = fs.open(path);
+				if (memoryMapped) {
+					bufferPool = new ElasticByteBufferPool();
+				}
 
-			// Advance input stream to requested start byte offset. This may
-			// take several calls to the DataInputStream.skip() method.
-			startOffset = start;
-			while (start > 0) {
-				long skipped = dataInputStream.skip(start);
-				if (skipped <= 0) {
-					break;
+				// Seek input stream to requested start byte offset
+				startOffset = start;
+				if (start > 0) {
+					dataInputStream.seek(start);
 				}
-				start -= skipped;
 			}
 
 			// Store current byte offset along with end byte offset
@@ -112,6 +374,58 @@ public class BioHipiImageBundle {
 			this(fs, path, 0, 0); // endOffset = 0 indicates read until EOF
 		}
 
+		/**
+		 * Returns the local {@link File} behind a path, or null if the path
+		 * does not reside on the local file system.
+		 */
+		private static File toLocalFile(FileSystem fs, Path path) {
+			if (fs instanceof LocalFileSystem) {
+				return ((LocalFileSystem) fs).pathToFile(path);
+			}
+			if (fs instanceof RawLocalFileSystem) {
+				return ((RawLocalFileSystem) fs).pathToFile(path);
+			}
+			return null;
+		}
+
+		/**
+		 * Repositions the reader to the image record that starts at the
+		 * given byte offset of the data file. The next call to {@link
+		 * #nextKeyValue()} or {@link #nextHeader()} reads that record. The
+		 * end offset of the segment is left unchanged.
+		 *
+		 * @param offset byte offset of the signature of an image record,
+		 * usually obtained from the BioHIB index file
+		 *
+		 * @throws IOException if the underlying stream cannot be positioned
+		 */
+		public void seek(long offset) throws IOException {
+			stopPrefetcher();
+			if (dataInputStream != null) {
+				releaseZeroCopyBuffer();
+				dataInputStream.seek(offset);
+			}
+			currentOffset = offset;
+		}
+
+		/**
+		 * Repositions the reader to a new segment of the same data file,
+		 * as if it had been created for that segment. Used to read several
+		 * record ranges (e.g., of a multi-range input split) through a
+		 * single open data file.
+		 *
+		 * @param start The byte offset to beginning of segment, which must
+		 * be the start of an image record
+		 * @param end The byte offset to end of segment
+		 *
+		 * @throws IOException if the underlying stream cannot be positioned
+		 */
+		public void setSegment(long start, long end) throws IOException {
+			seek(start);
+			startOffset = start;
+			endOffset = end;
+		}
+
 		/**
 		 * Returns current amount of progress reading file.
 		 * 
@@ -134,173 +448,678 @@ public class BioHipiImageBundle {
 		 * DataInputStream).
 		 */
 		public void close() throws IOException {
+			stopPrefetcher();
+			releaseZeroCopyBuffer();
+			dataMapping = null;
+			imageBuffer = null;
+			if (dataChannel != null) {
+				dataChannel.close();
+			}
 			if (dataInputStream != null) {
 				dataInputStream.close();
 			}
 		}
 
 		/**
-		 * Reads the next image header and image body into memory. To
-		 * obtain the corresponding {@link org.biohipi.image.BioHipiImageHeader} and {@link
-		 * org.biohipi.image.RasterImage} objects, call {@link #getCurrentKey()} and {@link
-		 * #getCurrentValue()} respectively.
-		 * 
-		 * @return true if the next image record (header + pixel data) was successfully read and decoded. False if there are no more images or if an error occurs.
+		 * Enables prefetching: a background thread reads the raw bytes of
+		 * the records that follow the current one into a bounded queue
+		 * while the current record is processed, so that reading from the
+		 * file system overlaps with decoding. The thread reads through a
+		 * second input stream opened at the first read after this call and
+		 * after every {@link #seek(long)}. Prefetching does not apply in
+		 * memory-mapped mode, where records are not copied anyway.
+		 *
+		 * @param maxRecords maximum number of records read ahead, 0 to
+		 * disable prefetching
+		 * @param maxBytes maximum number of image header and image data
+		 * bytes held in the queue
 		 */
-		public boolean nextKeyValue() {
-			try {
+		public void setPrefetch(int maxRecords, long maxBytes) {
+			stopPrefetcher();
+			prefetchRecords = memoryMapped ? 0 : Math.max(maxRecords, 0);
+			prefetchBytes = maxBytes;
+		}
 
-				// Reset state of current key/value
-				imageFormat = BioHipiImageFormat.UNDEFINED;
-				imageBytes = null;
-				imageHeader = null;
-				image = null;
+		/**
+		 * Enables object reuse, following the object reuse contract of
+		 * Hadoop record readers: the header returned by {@link
+		 * #getCurrentKey()}, the image returned by {@link #getCurrentValue()}
+		 * and the buffer returned by {@link #getImageByteBuffer()} are
+		 * overwritten by the next call to {@link #nextKeyValue()} or {@link
+		 * #nextHeader()}, so callers that keep them must copy them. Image
+		 * headers and image data are read into growable buffers that are
+		 * recycled, and {@link org.biohipi.image.RasterImage}s and {@link
+		 * org.biohipi.image.NiftiImage}s are refilled in place, reusing
+		 * their pixel arrays when the dimensions do not change.
+		 *
+		 * @param reuse true to reuse objects, false (the default) to create
+		 * new objects for every record
+		 */
+		public void setObjectReuse(boolean reuse) {
+			reuseObjects = reuse;
+			if (!reuse) {
+				headerBuffer = null;
+				payloadBuffer = null;
+				reusedHeader = null;
+				reusedImage = null;
+			}
+		}
 
-				// A value of endOffset = 0 indicates "read to the end of
-				// file", otherwise check segment boundary
+		/**
+		 * Returns a heap buffer whose limit is the given length, reusing
+		 * buffer if its capacity is large enough.
+		 */
+		private static ByteBuffer recycleBuffer(ByteBuffer buffer, int length) {
+			if (buffer == null || buffer.capacity() < length) {
+				buffer = ByteBuffer.allocate(length);
+			}
+			buffer.clear();
+			buffer.limit(length);
+			return buffer;
+		}
+
+		/**
+		 * Deserializes the image header of the current record, refilling
+		 * the reused header in reuse mode.
+		 */
+		private BioHipiImageHeader readImageHeader(ByteBuffer imageHeaderBuffer) throws IOException {
+			if (!reuseObjects) {
+				return new BioHipiImageHeader(new DataInputStream(new ByteBufferInputStream(imageHeaderBuffer)));
+			}
+			if (reusedHeader == null) {
+				reusedHeader = new BioHipiImageHeader(BioHipiImageFormat.UNDEFINED);
+			}
+			if (imageHeaderBuffer.hasArray()) {
+				headerInput.reset(imageHeaderBuffer.array(), imageHeaderBuffer.arrayOffset() + imageHeaderBuffer.position(), imageHeaderBuffer.remaining());
+				reusedHeader.readFields(headerInput);
+			} else {
+				reusedHeader.readFields(new DataInputStream(new ByteBufferInputStream(imageHeaderBuffer)));
+			}
+			return reusedHeader;
+		}
+
+		private void stopPrefetcher() {
+			if (prefetcher != null) {
+				prefetcher.stop();
+				prefetcher = null;
+			}
+		}
+
+		/**
+		 * Reads the next image record into a {@link RawRecord} without
+		 * decoding it. Used by the prefetch thread, stream mode only.
+		 *
+		 * @return the record, or null if there are no more records in the
+		 * segment
+		 */
+		private RawRecord readRawRecord() throws IOException {
+			if ((endOffset > 0 && currentOffset > endOffset) || !readSignature()) {
+				return null;
+			}
+			parseSignature();
+			RawRecord record = new RawRecord();
+			record.offset = currentOffset;
+			record.imageHeaderLength = imageHeaderLength;
+			record.imageLength = imageLength;
+			record.compression = compression;
+			record.imageFormat = imageFormat;
+			record.imageHeaderBytes = new byte[imageHeaderLength];
+			record.imageBytes = new byte[imageLength];
+			dataInputStream.readFully(record.imageHeaderBytes);
+			dataInputStream.readFully(record.imageBytes);
+			currentOffset += 12 + imageHeaderLength + imageLength;
+			return record;
+		}
+
+		/**
+		 * Makes the next prefetched record the current record, starting
+		 * the prefetch thread at the current offset if necessary.
+		 *
+		 * @return buffer over the serialized image header of the record,
+		 * or null if there are no more records in the segment
+		 */
+		private ByteBuffer takePrefetchedRecord() throws IOException {
+			if (prefetcher == null) {
 				if (endOffset > 0 && currentOffset > endOffset) {
-					// Already past end of file segment
-					return false;
+					return null;
 				}
+				prefetcher = new Prefetcher(new BioHibReader(fs, path, currentOffset, endOffset), prefetchRecords, prefetchBytes);
+			}
+			RawRecord record = prefetcher.take();
+			if (record == null) {
+				return null;
+			}
+			currentOffset = record.offset;
+			imageHeaderLength = record.imageHeaderLength;
+			imageLength = record.imageLength;
+			compression = record.compression;
+			imageFormat = record.imageFormat;
+			imageBuffer = ByteBuffer.wrap(record.imageBytes);
+			if (compression == BioHibCompression.NONE) {
+				imageBytes = record.imageBytes;
+			}
+			return ByteBuffer.wrap(record.imageHeaderBytes);
+		}
 
-				// Attempt to read 12-byte signature that contains length of
-				// image header, length of image data segment, and image
-				// storage format
+		/**
+		 * Returns the mapped region [offset, offset + length) of the local
+		 * data file as a {@link ByteBuffer} slice. A new mapping window is
+		 * created whenever the region is not covered by the current one.
+		 */
+		private ByteBuffer mapRegion(long offset, int length) throws IOException {
+			if (dataMapping == null || offset < mappingOffset || offset + length > mappingOffset + dataMapping.capacity()) {
+				long size = Math.min(MAX_MAPPING_SIZE, dataChannelSize - offset);
+				if (size < length) {
+					throw new EOFException("BioHIB image record at offset " + offset + " extends past end of data file.");
+				}
+				dataMapping = dataChannel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+				mappingOffset = offset;
+			}
+			ByteBuffer region = dataMapping.duplicate();
+			region.position((int) (offset - mappingOffset));
+			region.limit(region.position() + length);
+			return region.slice();
+		}
 
-				int sigOffset = 0;
-				int bytesRead = dataInputStream.read(sig);
+		/**
+		 * Reads length bytes at the current stream position with a zero-copy
+		 * read. If the read cannot be satisfied by a single buffer (e.g., the
+		 * region spans two HDFS blocks) the bytes are copied to the heap.
+		 */
+		private ByteBuffer readZeroCopy(int length) throws IOException {
+			releaseZeroCopyBuffer();
+			ByteBuffer buffer = dataInputStream.read(bufferPool, length, EnumSet.of(ReadOption.SKIP_CHECKSUMS));
+			if (buffer != null && buffer.remaining() == length) {
+				zeroCopyBuffer = buffer;
+				return buffer.slice();
+			}
+			byte[] bytes = new byte[length];
+			int copied = 0;
+			if (buffer != null) {
+				copied = buffer.remaining();
+				buffer.get(bytes, 0, copied);
+				dataInputStream.releaseBuffer(buffer);
+			}
+			dataInputStream.readFully(bytes, copied, length - copied);
+			return ByteBuffer.wrap(bytes);
+		}
+
+		private void releaseZeroCopyBuffer() {
+			if (zeroCopyBuffer != null) {
+				dataInputStream.releaseBuffer(zeroCopyBuffer);
+				zeroCopyBuffer = null;
+			}
+		}
+
+		/**
+		 * Reads the 12-byte signature of the next image record into sig,
+		 * skipping the padding written before block boundaries (see {@link
+		 * BioHipiImageBundle#setBlockAlignment(boolean)}).
+		 *
+		 * @return false if the end of the data file, or of the segment after
+		 * skipping padding, was reached before the next signature
+		 */
+		private boolean readSignature() throws IOException {
+			while (readSignatureBytes()) {
 
-				// Even reading signature might require multiple calls
-				while (bytesRead < (sig.length - sigOffset) && bytesRead > 0) {
-					sigOffset += bytesRead;
-					bytesRead = dataInputStream.read(sig, sigOffset, sig.length - sigOffset);
+				// Padding starts with a signature of image header length 0
+				// followed by the number of padding bytes after it
+				if (sig[0] != 0 || sig[1] != 0 || sig[2] != 0 || sig[3] != 0) {
+					return true;
 				}
+				int paddingLength = ((sig[4] & 0xff) << 24) | ((sig[5] & 0xff) << 16) | ((sig[6] & 0xff) << 8) | (sig[7] & 0xff);
+				if (paddingLength < 0) {
+					throw new IOException("Found padding length < 0 in BioHIB at offset: " + currentOffset);
+				}
+				currentOffset += 12 + paddingLength;
+				if (dataInputStream != null) {
+					dataInputStream.seek(currentOffset);
+				}
+				if (endOffset > 0 && currentOffset > endOffset) {
+					return false;
+				}
+			}
+			return false;
+		}
 
-				if (bytesRead <= 0) {
+		/**
+		 * Reads the next 12 bytes of the data file into sig.
+		 *
+		 * @return false if the end of the data file was reached before the
+		 * first byte of the signature
+		 */
+		private boolean readSignatureBytes() throws IOException {
+
+			if (dataChannel != null) {
+				if (currentOffset >= dataChannelSize) {
 					// Reached end of file without error
 					return false;
 				}
-
-				if (bytesRead < sig.length) {
-					// Read part of signature before encountering EOF. Malformed file.
+				if (currentOffset + sig.length > dataChannelSize) {
+					// Part of signature before EOF. Malformed file.
 					throw new IOException(String.format("Failed to read %d-byte BioHIB image signature that delineates image record boundaries.", sig.length));
 				}
+				// Parse signature straight out of the mapping
+				mapRegion(currentOffset, sig.length).get(sig);
+				return true;
+			}
 
-				// Parse and validate image header length
-				int imageHeaderLength = ((sig[0] & 0xff) << 24) | ((sig[1] & 0xff) << 16) | ((sig[2] & 0xff) << 8) | (sig[3] & 0xff);
-				if (imageHeaderLength <= 0) {
-					// Negative or zero file length, report corrupted BioHIB
-					throw new IOException("Found image header length <= 0 in BioHIB at offset: " + currentOffset);
-				}
+			int sigOffset = 0;
+			int bytesRead = dataInputStream.read(sig);
 
-				// Parse and validate image length
-				int imageLength = ((sig[4] & 0xff) << 24) | ((sig[5] & 0xff) << 16) | ((sig[6] & 0xff) << 8) | (sig[7] & 0xff);
-				if (imageLength <= 0) {
-					// Negative or zero file length, report corrupted BioHIB
-					throw new IOException("Found image data segment length <= 0 in BioHIB at offset: " + currentOffset);
-				}
+			// Even reading signature might require multiple calls
+			while (bytesRead < (sig.length - sigOffset) && bytesRead > 0) {
+				sigOffset += bytesRead;
+				bytesRead = dataInputStream.read(sig, sigOffset, sig.length - sigOffset);
+			}
 
-				// Parse and validate image format
-				int imageFormatInt = ((sig[8] & 0xff) << 24) | ((sig[9] & 0xff) << 16) | ((sig[10] & 0xff) << 8) | (sig[11] & 0xff);
-				try {
-					imageFormat = BioHipiImageFormat.fromInteger(imageFormatInt);
-				} catch (IllegalArgumentException e) {
-					throw new IOException("Found invalid image storage format in BioHIB at offset: " + currentOffset);
-				}
-				if (imageFormat == BioHipiImageFormat.UNDEFINED) {
-					throw new IOException("Found UNDEFINED image storage format in BioHIB at offset: " + currentOffset);
-				}
+			if (bytesRead <= 0) {
+				// Reached end of file without error
+				return false;
+			}
 
-				// Allocate byte array to hold image header data
-				byte[] imageHeaderBytes = new byte[imageHeaderLength];
+			if (bytesRead < sig.length) {
+				// Read part of signature before encountering EOF. Malformed file.
+				throw new IOException(String.format("Failed to read %d-byte BioHIB image signature that delineates image record boundaries.", sig.length));
+			}
+
+			return true;
+		}
+
+		/**
+		 * Parses and validates the lengths and the storage format of the
+		 * image record signature held in sig.
+		 */
+		private void parseSignature() throws IOException {
 
-				// Allocate byte array to hold image data
-				imageBytes = new byte[imageLength];
+			// Parse and validate image header length
+			imageHeaderLength = ((sig[0] & 0xff) << 24) | ((sig[1] & 0xff) << 16) | ((sig[2] & 0xff) << 8) | (sig[3] & 0xff);
+			if (imageHeaderLength <= 0) {
+				// Negative or zero file length, report corrupted BioHIB
+				throw new IOException("Found image header length <= 0 in BioHIB at offset: " + currentOffset);
+			}
 
-				// an exception? The stream position will become out of sync
-				// with currentOffset.
-				dataInputStream.readFully(imageHeaderBytes);        
-				dataInputStream.readFully(imageBytes);        
+			// Parse and validate image length
+			imageLength = ((sig[4] & 0xff) << 24) | ((sig[5] & 0xff) << 16) | ((sig[6] & 0xff) << 8) | (sig[7] & 0xff);
+			if (imageLength <= 0) {
+				// Negative or zero file length, report corrupted BioHIB
+				throw new IOException("Found image data segment length <= 0 in BioHIB at offset: " + currentOffset);
+			}
+
+			// Parse and validate image data compression, stored in the most
+			// significant byte of the image format
+			try {
+				compression = BioHibCompression.fromInteger(sig[8] & 0xff);
+			} catch (IllegalArgumentException e) {
+				throw new IOException("Found invalid image data compression in BioHIB at offset: " + currentOffset);
+			}
+
+			// Parse and validate image format
+			int imageFormatInt = ((sig[9] & 0xff) << 16) | ((sig[10] & 0xff) << 8) | (sig[11] & 0xff);
+			try {
+				imageFormat = BioHipiImageFormat.fromInteger(imageFormatInt);
+			} catch (IllegalArgumentException e) {
+				throw new IOException("Found invalid image storage format in BioHIB at offset: " + currentOffset);
+			}
+			if (imageFormat == BioHipiImageFormat.UNDEFINED) {
+				throw new IOException("Found UNDEFINED image storage format in BioHIB at offset: " + currentOffset);
+			}
+		}
 
-				// Advance byte offset by length of 12-byte signature plus
-				// image header length plus image pixel data length
+		/**
+		 * Reads only the signature and the image header of the next image
+		 * record and seeks over its image data. The header is available
+		 * through {@link #getCurrentKey()}, while {@link #getCurrentValue()}
+		 * returns null.
+		 *
+		 * @return true if the next image header was read, false if there
+		 * are no more images in the segment
+		 *
+		 * @throws IOException if the image record is malformed
+		 */
+		public boolean nextHeader() throws IOException {
+
+			// Reset state of current key/value
+			imageFormat = BioHipiImageFormat.UNDEFINED;
+			imageBytes = null;
+			imageBuffer = null;
+			imageHeader = null;
+			image = null;
+			imageDecoded = false;
+			decodeException = null;
+			recordOffset = -1;
+
+			if (prefetchRecords > 0) {
+				// Prefetched records are read completely, only the header
+				// is used
+				ByteBuffer imageHeaderBuffer = takePrefetchedRecord();
+				if (imageHeaderBuffer == null) {
+					return false;
+				}
+				imageBytes = null;
+				imageBuffer = null;
+				recordOffset = currentOffset;
 				currentOffset += 12 + imageHeaderLength + imageLength;
+				imageHeader = readImageHeader(imageHeaderBuffer);
+				return true;
+			}
+
+			if (endOffset > 0 && currentOffset > endOffset) {
+				// Already past end of file segment
+				return false;
+			}
+
+			if (!readSignature()) {
+				return false;
+			}
+			parseSignature();
+
+			ByteBuffer imageHeaderBuffer;
+			if (dataChannel != null) {
+				imageHeaderBuffer = mapRegion(currentOffset + 12, imageHeaderLength);
+			} else if (memoryMapped) {
+				imageHeaderBuffer = readZeroCopy(imageHeaderLength);
+			} else if (reuseObjects) {
+				headerBuffer = recycleBuffer(headerBuffer, imageHeaderLength);
+				dataInputStream.readFully(headerBuffer.array(), 0, imageHeaderLength);
+				imageHeaderBuffer = headerBuffer;
+			} else {
+				byte[] imageHeaderBytes = new byte[imageHeaderLength];
+				dataInputStream.readFully(imageHeaderBytes);
+				imageHeaderBuffer = ByteBuffer.wrap(imageHeaderBytes);
+			}
 
-				// Attempt to decode image header
-				DataInputStream dis = new DataInputStream(new ByteArrayInputStream(imageHeaderBytes));
-				imageHeader = new BioHipiImageHeader(dis);
+			// Seek over image data
+			recordOffset = currentOffset;
+			currentOffset += 12 + imageHeaderLength + imageLength;
+			if (dataInputStream != null) {
+				dataInputStream.seek(currentOffset);
+			}
 
-				System.out.println("MetaInfo: " + imageHeader.getAllMetaData());
+			imageHeader = readImageHeader(imageHeaderBuffer);
 
-				// Wrap image bytes in stream
-				ByteArrayInputStream imageByteStream = new ByteArrayInputStream(imageBytes);
+			return true;
+		}
 
-				// Obtain suitable image decoder
-				ImageDecoder decoder = CodecManager.getDecoder(imageFormat);
-				if (decoder == null) {
-					throw new IOException("Unsupported storage format in image record ending at byte offset: " + currentOffset);
+		/**
+		 * Reads the next image header and image body into memory. To
+		 * obtain the corresponding {@link org.biohipi.image.BioHipiImageHeader} and {@link
+		 * org.biohipi.image.RasterImage} objects, call {@link #getCurrentKey()} and {@link
+		 * #getCurrentValue()} respectively. The image header is decoded
+		 * right away, the image itself only when {@link #getCurrentValue()}
+		 * is first called, so records that are skipped based on their
+		 * header or storage format are never decoded.
+		 * 
+		 * @return true if the next image record (header + pixel data) was successfully read, false if there are no more images in the segment
+		 *
+		 * @throws IOException if the image record is malformed or cannot be read
+		 */
+		public boolean nextKeyValue() throws IOException {
+
+			// Reset state of current key/value
+			imageFormat = BioHipiImageFormat.UNDEFINED;
+			imageBytes = null;
+			imageBuffer = null;
+			imageHeader = null;
+			image = null;
+			imageDecoded = false;
+			decodeException = null;
+			recordOffset = -1;
+
+			ByteBuffer imageHeaderBuffer;
+			if (prefetchRecords > 0) {
+				// Record already read by the prefetch thread
+				imageHeaderBuffer = takePrefetchedRecord();
+				if (imageHeaderBuffer == null) {
+					return false;
 				}
+			} else {
 
-				// Call appropriate decode function based on type of image
-				// object
-				try {
-					image = decoder.decodeImage(imageByteStream, imageHeader);
-				} catch (Exception e) {
-					System.err.println("Runtime exception while attempting to decode image: " + e.getMessage());
-					e.printStackTrace();
-					// Attempt to keep going
-					return nextKeyValue();
+				// A value of endOffset = 0 indicates "read to the end of
+				// file", otherwise check segment boundary
+				if (endOffset > 0 && currentOffset > endOffset) {
+					// Already past end of file segment
+					return false;
 				}
 
-				return true;
+				// Attempt to read 12-byte signature that contains length of
+				// image header, length of image data segment, and image
+				// storage format
+				if (!readSignature()) {
+					return false;
+				}
+				parseSignature();
+
+				if (dataChannel != null) {
+					// Slice image header and image data out of the mapping
+					ByteBuffer record = mapRegion(currentOffset + 12, imageHeaderLength + imageLength);
+					record.limit(imageHeaderLength);
+					imageHeaderBuffer = record.slice();
+					record.limit(imageHeaderLength + imageLength).position(imageHeaderLength);
+					imageBuffer = record.slice();
+				} else if (memoryMapped) {
+					// Zero-copy read of image header and image data
+					ByteBuffer record = readZeroCopy(imageHeaderLength + imageLength);
+					record.limit(imageHeaderLength);
+					imageHeaderBuffer = record.slice();
+					record.limit(imageHeaderLength + imageLength).position(imageHeaderLength);
+					imageBuffer = record.slice();
+				} else if (reuseObjects) {
+					// Read image header and image data into the
+					// recycled buffers
+					headerBuffer = recycleBuffer(headerBuffer, imageHeaderLength);
+					payloadBuffer = recycleBuffer(payloadBuffer, imageLength);
+					dataInputStream.readFully(headerBuffer.array(), 0, imageHeaderLength);
+					dataInputStream.readFully(payloadBuffer.array(), 0, imageLength);
+					imageHeaderBuffer = headerBuffer;
+					imageBuffer = payloadBuffer;
+				} else {
+
+					// Allocate byte array to hold image header data
+					byte[] imageHeaderBytes = new byte[imageHeaderLength];
+
+					// Allocate byte array to hold image data
+					byte[] storedImageBytes = new byte[imageLength];
+
+					// an exception? The stream position will become out of sync
+					// with currentOffset.
+					dataInputStream.readFully(imageHeaderBytes);        
+					dataInputStream.readFully(storedImageBytes);        
+
+					imageHeaderBuffer = ByteBuffer.wrap(imageHeaderBytes);
+					imageBuffer = ByteBuffer.wrap(storedImageBytes);
+					if (compression == BioHibCompression.NONE) {
+						imageBytes = storedImageBytes;
+					}
+				}
+			}
 
-			} catch (EOFException e) {
-				System.err.println(String.format("EOF exception [%s] while decoding BioHIB image record ending at byte offset [%d]", 
-						e.getMessage(), currentOffset, endOffset));
-				e.printStackTrace();
-				imageFormat = BioHipiImageFormat.UNDEFINED;
-				imageBytes = null;
-				imageHeader = null;
-				image = null;
-				return false;
-			} catch (IOException e) {
-				System.err.println(String.format("IO exception [%s] while decoding BioHIB image record ending at byte offset [%d]",
-						e.getMessage(), currentOffset));
-				e.printStackTrace();
-				imageFormat = BioHipiImageFormat.UNDEFINED;
-				imageBytes = null;
-				imageHeader = null;
-				image = null;
-				return false;
-			} catch (RuntimeException e) {
-				System.err.println(String.format("Runtime exception [%s] while decoding BioHIB image record ending at byte offset [%d]",
-						e.getMessage(), currentOffset));
-				e.printStackTrace();
-				imageFormat = BioHipiImageFormat.UNDEFINED;
-				imageBytes = null;
-				imageHeader = null;
-				image = null;
-				return false;
+			// Advance byte offset by length of 12-byte signature plus
+			// image header length plus image pixel data length
+			recordOffset = currentOffset;
+			currentOffset += 12 + imageHeaderLength + imageLength;
+
+			// Attempt to decode image header
+			imageHeader = readImageHeader(imageHeaderBuffer);
+
+			return true;
+		}
+
+		/**
+		 * Decodes the image data of the current record with the decoder
+		 * of its storage format. A failure is logged and kept, see {@link
+		 * #getDecodeException()}.
+		 *
+		 * @return the decoded image, or null if the image cannot be decoded
+		 */
+		private BioHipiImage decodeImage() {
+			BioHipiImage decoded;
+			try {
+				decoded = decodeImage(imageFormat, compression, imageBuffer, imageHeader, conf, recordOffset, reuseObjects ? reusedImage : null);
 			} catch (Exception e) {
-				System.err.println(String.format("Unexpected exception [%s] while decoding BioHIB image record ending at byte offset [%d]",
-						e.getMessage(), currentOffset));
-				e.printStackTrace();
-				imageFormat = BioHipiImageFormat.UNDEFINED;
-				imageBytes = null;
-				imageHeader = null;
-				image = null;
-				return false;
+				decodeException = e;
+				LOG.warn("Failed to decode image record at byte offset [" + recordOffset + "] of BioHIB data file [" + path + "]", e);
+				return null;
+			}
+			if (reuseObjects && decoded != null) {
+				reusedImage = decoded;
+			}
+			return decoded;
+		}
+
+		/**
+		 * Returns a task that decodes the image of the current record
+		 * independently of this reader, so that it can run on another
+		 * thread while the reader moves on to the following records.
+		 * Image data and headers that are only valid until the next read
+		 * (zero-copy reads in memory-mapped mode, object reuse) are copied
+		 * first.
+		 *
+		 * @return task whose result is the decoded image, or null if there
+		 * is no current record. The task fails with the exception of the
+		 * decoder if the image cannot be decoded; it is not logged.
+		 */
+		public Callable<BioHipiImage> detachImageDecoder() {
+			final BioHipiImageFormat format = imageFormat;
+			final BioHibCompression storedCompression = compression;
+			BioHipiImageHeader currentHeader = imageHeader;
+			if (reuseObjects && currentHeader != null) {
+				currentHeader = new BioHipiImageHeader(imageHeader.getStorageFormat());
+				currentHeader.appendMetaData(imageHeader.getAllMetaData());
+			}
+			final BioHipiImageHeader header = currentHeader;
+			final long offset = recordOffset;
+			final Configuration decodeConf = conf;
+			ByteBuffer buffer = imageBuffer;
+			if (buffer != null && (zeroCopyBuffer != null || reuseObjects)) {
+				byte[] bytes = new byte[buffer.remaining()];
+				buffer.duplicate().get(bytes);
+				buffer = ByteBuffer.wrap(bytes);
+			}
+			final ByteBuffer storedImage = buffer;
+			return new Callable<BioHipiImage>() {
+				@Override
+				public BioHipiImage call() throws Exception {
+					return decodeImage(format, storedCompression, storedImage, header, decodeConf, offset, null);
+				}
+			};
+		}
+
+		/**
+		 * Decodes image data with the decoder of its storage format,
+		 * refilling reuse in place if it is an image of the type the
+		 * decoder creates.
+		 *
+		 * @return the decoded image, or null if there is no image data
+		 *
+		 * @throws Exception if the storage format has no decoder or the
+		 * decoder fails
+		 */
+		private static BioHipiImage decodeImage(BioHipiImageFormat imageFormat, BioHibCompression compression,
+				ByteBuffer imageBuffer, BioHipiImageHeader imageHeader, Configuration conf, long recordOffset, BioHipiImage reuse) throws Exception {
+			if (imageBuffer == null) {
+				return null;
+			}
+
+			// Obtain suitable image decoder
+			ImageDecoder decoder = null;
+			try {
+				decoder = CodecManager.getDecoder(imageFormat);
+			} catch (IllegalArgumentException e) {
+				// Reported below
+			}
+			if (decoder == null) {
+				throw new IOException("Unsupported storage format [" + imageFormat + "] in image record at byte offset [" + recordOffset + "].");
+			}
+
+			// Call appropriate decode function based on type of image
+			// object, decompressing while decoding
+			try (InputStream imageStream = compression.createInputStream(new ByteBufferInputStream(imageBuffer), conf)) {
+				if (reuse instanceof RasterImage && decoder instanceof RasterCodec) {
+					return ((RasterCodec) decoder).decodeImage(imageStream, imageHeader, (RasterImage) reuse);
+				}
+				if (reuse instanceof NiftiImage && decoder instanceof NiftiCodec) {
+					return ((NiftiCodec) decoder).decodeImage(imageStream, imageHeader, (NiftiImage) reuse);
+				}
+				return decoder.decodeImage(imageStream, imageHeader);
 			}
+		}
 
+		/**
+		 * Opens a stream over the image data of the current record, which
+		 * decompresses the stored bytes while they are read.
+		 */
+		private InputStream openImageStream() throws IOException {
+			return compression.createInputStream(new ByteBufferInputStream(imageBuffer), conf);
 		}
 
 		/**
-		 * @return Byte array containing raw image data.
+		 * @return Byte array containing raw image data. In memory-mapped
+		 * mode the bytes are copied out of the mapping on first access, and
+		 * compressed image data is decompressed on first access. Null if
+		 * there is no current record or its image data cannot be
+		 * decompressed.
 		 */
 		public byte[] getImageBytes() {
+			if (imageBytes == null && imageBuffer != null) {
+				if (compression == BioHibCompression.NONE) {
+					imageBytes = new byte[imageBuffer.remaining()];
+					imageBuffer.duplicate().get(imageBytes);
+				} else {
+					try (InputStream imageStream = openImageStream()) {
+						imageBytes = ByteUtils.inputStreamToByteArray(imageStream);
+					} catch (IOException e) {
+						// Image data cannot be decompressed
+						return null;
+					}
+				}
+			}
 			return imageBytes;
 		}
 
+		/**
+		 * @return Compression of the image data stored in the current
+		 * record, see {@link #getImageByteBuffer()}.
+		 */
+		public BioHibCompression getImageCompression() {
+			return compression;
+		}
+
+		/**
+		 * @return Read-only {@link ByteBuffer} over the image data of the
+		 * current record as stored in the data file, i.e. compressed with
+		 * {@link #getImageCompression()}. In memory-mapped mode this is a
+		 * slice of the mapping and is only valid until the next call to
+		 * {@link #nextKeyValue()} or {@link #close()}.
+		 */
+		public ByteBuffer getImageByteBuffer() {
+			return imageBuffer == null ? null : imageBuffer.asReadOnlyBuffer();
+		}
+
+		/**
+		 * @return Byte offset of the current image record in the data
+		 * file, or -1 if there is no current record.
+		 */
+		public long getCurrentRecordOffset() {
+			return recordOffset;
+		}
+
+		/**
+		 * @return Length in bytes of the image data of the current record
+		 * as stored in the data file, or 0 if there is no current record.
+		 */
+		public long getCurrentImageLength() {
+			return recordOffset < 0 ? 0 : imageLength;
+		}
+
+		/**
+		 * @return Length in bytes of the current image record (signature,
+		 * image header and image data), or 0 if there is no current record.
+		 */
+		public long getCurrentRecordLength() {
+			return recordOffset < 0 ? 0 : 12 + imageHeaderLength + imageLength;
+		}
+
 		/**
 		 * @return Storage format of raw image bytes.
 		 */
@@ -317,15 +1136,36 @@ public class BioHipiImageBundle {
 		}
 
 		/**
+		 * Decodes the image of the current record on the first call, and
+		 * returns the same image on subsequent calls.
+		 *
 		 * @return Current decoded image, as retrieved by {@link
-		 * #nextKeyValue()}
+		 * #nextKeyValue()}, or null if there is no current record, only its
+		 * header was read ({@link #nextHeader()}) or the image could not be
+		 * decoded (see {@link #getDecodeException()})
 		 */
 		public BioHipiImage getCurrentValue() {
+			if (!imageDecoded) {
+				imageDecoded = true;
+				image = decodeImage();
+			}
 			return image;
 		}
 
+		/**
+		 * @return Exception that made decoding the image of the current
+		 * record fail in {@link #getCurrentValue()}, e.g. an unsupported
+		 * storage format or corrupt image data, or null if it was decoded
+		 * or not decoded yet.
+		 */
+		public Exception getDecodeException() {
+			return decodeException;
+		}
+
 	} // public static class HibReader
 
+	private static final Log LOG = LogFactory.getLog(BioHipiImageBundle.class);
+
 	public static final int FILE_MODE_UNDEFINED = 0;
 	public static final int FILE_MODE_READ = 1;
 	public static final int FILE_MODE_WRITE = 2;
@@ -334,27 +1174,71 @@ public class BioHipiImageBundle {
 
 	private Path indexFilePath = null;
 	private Path dataFilePath = null;
+	private Path metaFilePath = null;
+	private Path invertedIndexFilePath = null;
 
 	protected Configuration conf = null;
 
 	//	protected BioHipiImageFactory imageFactory = null;
 
-	private DataInputStream indexInputStream = null;
+	private FSDataInputStream indexInputStream = null;
 	private DataOutputStream indexOutputStream = null;
 	private DataOutputStream dataOutputStream = null;
+	private DataOutputStream metaOutputStream = null;
 
 	private BioHibReader hibReader = null;
 
 	private byte sig[] = new byte[12];
 
+	// Buffer copying image data from streams of known length
+	private static final int COPY_BUFFER_SIZE = 1024 * 1024;
+	private byte copyBuffer[] = null;
+
 	private long currentOffset = 0;
 
+	// Length of the index file header (bytes before the first offset) and
+	// number of image records, both known once opened for reading
+	private long indexHeaderLength = 0;
+	private int imageCount = 0;
+
+	// Version of the index file and length of one of its entries
+	private int indexVersion = BioHibIndex.VERSION_2;
+	private int indexEntryLength = BioHibIndex.ENTRY_LENGTH_V2;
+
 	private long blockSize = 0;
 	private short replication = 0;
 
+	// Compression applied to the image data of images added from now on
+	private BioHibCompression compression = BioHibCompression.NONE;
+
+	// Meta data keys to index while writing and the index being built
+	private String[] invertedIndexKeys = null;
+	private BioHibInvertedIndex invertedIndex = null;
+
+	// Block alignment of the image records (null to take it from the
+	// configuration) and, while writing, the start offset of the current
+	// block of the data file
+	private Boolean blockAlignment = null;
+	private boolean alignBlocks = false;
+	private long blockStart = 0;
+
+	// Index entry of the last image record written in block-aligned mode.
+	// It is written once the next record is added or the BioHIB is closed,
+	// when it is known whether padding follows the record.
+	private boolean indexEntryPending = false;
+	private int pendingImageHeaderLength = 0;
+	private int pendingImageLength = 0;
+	private int pendingImageFormatInt = 0;
+	private long pendingFingerprint = 0;
+
+	// Zeros written as padding
+	private static final byte[] PADDING = new byte[64 * 1024];
+
 	public BioHipiImageBundle(Path indexFilePath, Configuration conf) {
 		this.indexFilePath = indexFilePath;
 		this.dataFilePath = indexFilePath.suffix(".dat");
+		this.metaFilePath = indexFilePath.suffix(".meta");
+		this.invertedIndexFilePath = indexFilePath.suffix(".inv");
 		this.conf = conf;
 	}
 
@@ -378,6 +1262,169 @@ public class BioHipiImageBundle {
 		return indexFilePath;
 	}
 
+	/**
+	 * @return Path of the meta data sidecar file of the BioHIB
+	 */
+	public Path getMetaFilePath() {
+		return metaFilePath;
+	}
+
+	/**
+	 * @return true if the meta data sidecar file of the BioHIB exists.
+	 * BioHIBs written before sidecar files were introduced have none.
+	 *
+	 * @throws IOException if the file system cannot be queried
+	 */
+	public boolean hasMetaFile() throws IOException {
+		return FileSystem.get(conf).exists(metaFilePath);
+	}
+
+	/**
+	 * Opens a reader over the image headers stored in the meta data sidecar
+	 * file of the BioHIB. The BioHIB itself does not need to be opened and
+	 * its data file is not accessed.
+	 *
+	 * @return reader iterating over the image headers in index order. The
+	 * caller must close it.
+	 *
+	 * @throws IOException if the BioHIB has no meta data file or it cannot
+	 * be read
+	 */
+	public BioHibMetaReader openMetaReader() throws IOException {
+		FileSystem fs = FileSystem.get(conf);
+		if (!fs.exists(metaFilePath)) {
+			throw new IOException("BioHIB meta data file not found [" + metaFilePath.getName() + "].");
+		}
+		return new BioHibMetaReader(fs, metaFilePath);
+	}
+
+	/**
+	 * Sets the codec used to compress the image data of images that are
+	 * subsequently added to the BioHIB. Image headers are never compressed.
+	 * An image whose data does not shrink is stored uncompressed, so the
+	 * codec is recorded per image in its record signature and readers
+	 * decompress transparently.
+	 *
+	 * @param compression image data compression, {@link
+	 * BioHibCompression#NONE} to store image data as-is (default)
+	 */
+	public void setCompression(BioHibCompression compression) {
+		this.compression = compression == null ? BioHibCompression.NONE : compression;
+	}
+
+	/**
+	 * @return Compression applied to the image data of added images
+	 */
+	public BioHibCompression getCompression() {
+		return compression;
+	}
+
+	/**
+	 * Selects the meta data keys whose values are indexed in the inverted
+	 * index file of the BioHIB. Must be called before {@link
+	 * #openForWrite(boolean)}. If never called, the keys are taken from the
+	 * comma-separated <code>hipi.bundle.index.keys</code> configuration
+	 * property, and no inverted index is written if that is unset.
+	 *
+	 * @param keys meta data keys to index, e.g. {@link
+	 * org.biohipi.image.BioHipiImageHeader.BioHipiKeyMetaData#PATIENT_ID}
+	 */
+	public void setInvertedIndexKeys(String... keys) {
+		this.invertedIndexKeys = keys;
+	}
+
+	/**
+	 * @return Path of the inverted index file of the BioHIB
+	 */
+	public Path getInvertedIndexPath() {
+		return invertedIndexFilePath;
+	}
+
+	/**
+	 * @return true if the inverted index file of the BioHIB exists
+	 *
+	 * @throws IOException if the file system cannot be queried
+	 */
+	public boolean hasInvertedIndex() throws IOException {
+		return FileSystem.get(conf).exists(invertedIndexFilePath);
+	}
+
+	/**
+	 * Reads the inverted index file of the BioHIB. The BioHIB itself does
+	 * not need to be opened.
+	 *
+	 * @param keys meta data keys to load, all indexed keys if none are given
+	 * @return the inverted index
+	 *
+	 * @throws IOException if the BioHIB has no inverted index file or it
+	 * cannot be read
+	 */
+	public BioHibInvertedIndex readInvertedIndex(String... keys) throws IOException {
+		FileSystem fs = FileSystem.get(conf);
+		if (!fs.exists(invertedIndexFilePath)) {
+			throw new IOException("BioHIB inverted index file not found [" + invertedIndexFilePath.getName() + "].");
+		}
+		return BioHibInvertedIndex.read(fs, invertedIndexFilePath, keys);
+	}
+
+	/**
+	 * Aligns the image records of the BioHIB to the blocks of its data
+	 * file. An image record that would straddle the next block boundary
+	 * but fits into a single block is written after padding up to the
+	 * boundary, so that it is read from a single block (and, on HDFS, from
+	 * a single data node). The padding is counted to the preceding image
+	 * record in the index file, whose end offset then falls on the block
+	 * boundary, and starts with a marker that {@link BioHibReader} skips.
+	 * The padding of a block is shorter than the record that follows it;
+	 * for records of about the same length, blocks sized with {@link
+	 * #getAlignedBlockSize} keep it below one checksum chunk.
+	 * <br>
+	 * Must be called before {@link #openForWrite(boolean)} or {@link
+	 * #openForAppend()}. If never called, alignment is taken from the
+	 * <code>hipi.bundle.block.align</code> configuration property (default
+	 * false). The first image added after {@link #openForAppend()}, {@link
+	 * #append} or {@link #concat} is not aligned, since the index entry
+	 * of the record before it is already written.
+	 *
+	 * @param align true to align image records to blocks
+	 */
+	public void setBlockAlignment(boolean align) {
+		this.blockAlignment = align;
+	}
+
+	/**
+	 * Computes the data file block size that holds a whole number of image
+	 * records of a given length with the least padding. HDFS block sizes
+	 * must be a multiple of the checksum chunk size, so the block size is
+	 * the size of the records rounded up to the next chunk, with room for
+	 * the padding marker.
+	 *
+	 * @param recordLength upper bound of the length of an image record,
+	 * i.e. 12 bytes of signature plus the length of the serialized image
+	 * header and of the (compressed) image data
+	 * @param blockSize preferred block size, e.g. the default block size of
+	 * the file system
+	 * @param bytesPerChecksum checksum chunk size of the file system,
+	 * <code>dfs.bytes-per-checksum</code> (default 512) on HDFS
+	 * @return block size of at most blockSize, unless a single record is
+	 * longer than that
+	 */
+	public static long getAlignedBlockSize(long recordLength, long blockSize, int bytesPerChecksum) {
+		long records = Math.max(blockSize / recordLength, 1);
+		while (true) {
+			long recordsLength = records * recordLength;
+			long alignedBlockSize = (recordsLength + bytesPerChecksum - 1) / bytesPerChecksum * bytesPerChecksum;
+			if (alignedBlockSize > recordsLength && alignedBlockSize - recordsLength < 12) {
+				// Room for the padding marker
+				alignedBlockSize += bytesPerChecksum;
+			}
+			if (alignedBlockSize <= blockSize || records == 1) {
+				return alignedBlockSize;
+			}
+			records--;
+		}
+	}
+
 	/**
 	 * Opens the underlying index and data files for writing.
 	 * 
@@ -401,70 +1448,390 @@ public class BioHipiImageBundle {
 			throw new IOException("BioHIB [" + dataFilePath.getName() + "] already exists. Cannot open HIB for writing unless overwrite is specified.");
 		}
 
-		assert indexOutputStream == null;
-		assert dataOutputStream == null;
-		assert indexInputStream == null;
+		assert indexOutputStream == null;
+		assert dataOutputStream == null;
+		assert metaOutputStream == null;
+		assert indexInputStream == null;
+
+		alignBlocks = blockAlignment != null ? blockAlignment : conf.getBoolean("hipi.bundle.block.align", false);
+		if (blockSize <= 0) {
+			blockSize = fs.getDefaultBlockSize(dataFilePath);
+
+			// Blocks holding a whole number of records of the given length
+			long recordLength = conf.getLong("hipi.bundle.block.record.length", 0);
+			if (alignBlocks && recordLength > 0) {
+				blockSize = getAlignedBlockSize(recordLength, blockSize, conf.getInt("dfs.bytes-per-checksum", 512));
+			}
+		}
+
+		if (replication <= 0) {
+			replication = fs.getDefaultReplication(dataFilePath);
+		}
+		try {
+			indexOutputStream = new DataOutputStream(fs.create(indexFilePath));
+			dataOutputStream = new DataOutputStream(fs.create(dataFilePath, true, fs.getConf().getInt("io.file.buffer.size", 4096), replication, blockSize));
+			metaOutputStream = new DataOutputStream(fs.create(metaFilePath));
+			currentOffset = 0;
+			imageCount = 0;
+			blockStart = 0;
+			indexEntryPending = false;
+			writeBundleHeader();
+			writeMetaHeader();
+
+			// An inverted index left over from an overwritten BioHIB would
+			// not match the new images
+			String[] keys = invertedIndexKeys != null ? invertedIndexKeys : conf.getStrings("hipi.bundle.index.keys");
+			invertedIndex = keys != null && keys.length > 0 ? new BioHibInvertedIndex(keys) : null;
+			if (fs.exists(invertedIndexFilePath)) {
+				fs.delete(invertedIndexFilePath, false);
+			}
+		} catch (IOException ex) {
+			System.err.println("I/O exception while attempting to open BioHIB [" + indexFilePath.getName() + "] for writing with overwrite [" + overwrite + "].");
+			System.err.println(ex.getMessage());
+			indexOutputStream = null;
+			dataOutputStream = null;
+			metaOutputStream = null;
+			indexInputStream = null;
+			return;
+		}
+
+		// Indicates success
+		fileMode = FILE_MODE_WRITE;
+	}
+
+	/**
+	 * Opens an existing BioHIB for writing, so that images added with
+	 * {@link #addImage}, {@link #append} or {@link #concat} are stored after
+	 * its current images. The index, data and meta data files are continued
+	 * in place rather than rewritten. An existing inverted index is
+	 * extended; otherwise, if keys are selected with {@link
+	 * #setInvertedIndexKeys} or <code>hipi.bundle.index.keys</code>, a new
+	 * one is built over all images. A missing meta data file is regenerated
+	 * from the image headers in the data file.
+	 * <br>
+	 * Checksummed file systems (e.g., the local file system) cannot append
+	 * to files, so there the files are appended through the raw file system
+	 * and their now stale checksum files are deleted. The checksums are not
+	 * recomputed, so from then on these files are read without checksum
+	 * verification. HDFS keeps checksumming appended files.
+	 *
+	 * @throws IOException if the BioHIB is already open or not found, has a
+	 * version 1 index file, or its data file does not end with its last image
+	 * record
+	 */
+	public final void openForAppend() throws IOException {
+
+		if (fileMode != FILE_MODE_UNDEFINED) {
+			throw new IOException("BioHIB [" + indexFilePath.getName() + "] is already open. Must close before calling this method.");
+		}
+
+		FileSystem fs = FileSystem.get(conf);
+
+		// Find the end of the BioHIB, and read its image headers if it has
+		// no meta data file
+		openForRead();
+		if (fileMode != FILE_MODE_READ) {
+			throw new IOException("Failed to open BioHIB [" + indexFilePath.getName() + "] for appending.");
+		}
+		int count = 0;
+		long dataLength = 0;
+		List<BioHipiImageHeader> headers = null;
+		try {
+			if (indexVersion != BioHibIndex.VERSION_2) {
+				throw new IOException("BioHIB [" + indexFilePath.getName() + "] has a version 1 index file. Cannot open HIB for appending.");
+			}
+			BioHibIndex index = readIndex();
+			count = index.size();
+			dataLength = index.getDataLength();
+			if (getDataFileStatus().getLen() != dataLength) {
+				throw new IOException("BioHIB data file [" + dataFilePath.getName() + "] does not end with its last image record at byte [" + dataLength + "]. Cannot open HIB for appending.");
+			}
+			if (!hasMetaFile()) {
+				headers = new ArrayList<BioHipiImageHeader>(count);
+				for (int j = 0; j < count; j++) {
+					headers.add(readHeader(j));
+				}
+			}
+		} finally {
+			close();
+		}
+
+		// Extend the inverted index, or build it over the current images
+		String[] keys = invertedIndexKeys != null ? invertedIndexKeys : conf.getStrings("hipi.bundle.index.keys");
+		invertedIndex = null;
+		if (fs.exists(invertedIndexFilePath)) {
+			invertedIndex = BioHibInvertedIndex.read(fs, invertedIndexFilePath);
+		} else if (keys != null && keys.length > 0) {
+			invertedIndex = new BioHibInvertedIndex(keys);
+			if (headers != null) {
+				for (int j = 0; j < count; j++) {
+					invertedIndex.add(headers.get(j), j);
+				}
+			} else {
+				BioHibMetaReader metaReader = openMetaReader();
+				for (int j = 0; metaReader.nextHeader(); j++) {
+					invertedIndex.add(metaReader.getCurrentKey(), j);
+				}
+				metaReader.close();
+			}
+		}
+
+		try {
+			indexOutputStream = new DataOutputStream(appendFile(fs, indexFilePath));
+			dataOutputStream = new DataOutputStream(appendFile(fs, dataFilePath));
+			if (headers == null) {
+				metaOutputStream = new DataOutputStream(appendFile(fs, metaFilePath));
+			} else {
+				metaOutputStream = new DataOutputStream(fs.create(metaFilePath));
+				writeMetaHeader();
+				for (BioHipiImageHeader header : headers) {
+					header.write(metaOutputStream);
+				}
+			}
+		} catch (IOException ex) {
+			invertedIndex = null;
+			close();
+			throw ex;
+		}
+		currentOffset = dataLength;
+		imageCount = count;
+		alignBlocks = blockAlignment != null ? blockAlignment : conf.getBoolean("hipi.bundle.block.align", false);
+		blockSize = getDataFileStatus().getBlockSize();
+		blockStart = findLastBlockStart(fs);
+		indexEntryPending = false;
+
+		// Indicates success
+		fileMode = FILE_MODE_WRITE;
+	}
+
+	/**
+	 * @return start offset of the last block of the data file, from which
+	 * block boundaries are counted while writing
+	 */
+	private long findLastBlockStart(FileSystem fs) throws IOException {
+		FileStatus status = fs.getFileStatus(dataFilePath);
+		if (status.getLen() == 0) {
+			return 0;
+		}
+		BlockLocation[] blocks = fs.getFileBlockLocations(status, status.getLen() - 1, 1);
+		return blocks.length == 0 ? 0 : blocks[blocks.length - 1].getOffset();
+	}
+
+	/**
+	 * Opens an existing file for appending. A checksummed file system
+	 * cannot append, so the file is appended through its raw file system
+	 * and the checksum file, which would no longer match, is deleted.
+	 */
+	private static FSDataOutputStream appendFile(FileSystem fs, Path path) throws IOException {
+		if (fs instanceof ChecksumFileSystem) {
+			ChecksumFileSystem checksumFs = (ChecksumFileSystem) fs;
+			checksumFs.getRawFileSystem().delete(checksumFs.getChecksumFile(path), false);
+			return checksumFs.getRawFileSystem().append(path);
+		}
+		return fs.append(path);
+	}
+
+	/**
+	 * BioHIB index file header structure:
+	 * BOF
+	 * 4 bytes (int): magic signature (0x81911b18) "HIPIIbIH"
+	 * 4 bytes (int): index version (0 for version 1, 2 for version 2)
+	 * 12 bytes: reserved for future use
+	 * 4 bytes: number of bytes to skip to reach start of offset list
+	 * version 1: [8 byte]*: offsets
+	 * version 2: [8 byte offset, 4 byte header length, 4 byte image length,
+	 *             4 byte image format, 8 byte meta data fingerprint]*
+	 * EOF
+	 */
+	private void writeBundleHeader() throws IOException {
+		assert indexOutputStream != null;
+		// Magic number
+		indexOutputStream.writeInt(0x81911b18);
+		// Index version followed by reserved fields (16 bytes)
+		indexOutputStream.writeInt(BioHibIndex.VERSION_2);
+		indexOutputStream.writeInt(0);
+		indexOutputStream.writeLong(0);
+		// Number of bytes to skip (0)
+		indexOutputStream.writeInt(0);
+	}
+
+	/**
+	 * Writes the file header of the meta data sidecar file, see {@link
+	 * BioHibMetaReader} for its structure.
+	 */
+	private void writeMetaHeader() throws IOException {
+		assert metaOutputStream != null;
+		metaOutputStream.writeInt(BioHibMetaReader.MAGIC);
+		metaOutputStream.writeInt(BioHibMetaReader.VERSION_1);
+		metaOutputStream.writeInt(0);
+		metaOutputStream.writeLong(0);
+		metaOutputStream.writeInt(0);
+	}
+
+	/**
+	 * Writes a version 2 entry to the index file.
+	 */
+	private void writeIndexEntry(long endOffset, int imageHeaderLength, int imageLength, int imageFormatInt, long fingerprint) throws IOException {
+		indexOutputStream.writeLong(endOffset);
+		indexOutputStream.writeInt(imageHeaderLength);
+		indexOutputStream.writeInt(imageLength);
+		indexOutputStream.writeInt(imageFormatInt);
+		indexOutputStream.writeLong(fingerprint);
+	}
+
+	/**
+	 * Add image to the BioHIB. This involves appending the image to the data file, and adding the corresponding byte offset to the index file.
+	 *
+	 * @param imageHeader initialized image header
+	 * @param imageStream input stream containing the image data. This data is not decoded or verified to be consistent with the provided image header. It is simply appended to the BioHIB data file.
+	 *
+	 * @throws IOException in the event of any I/O errors or if the BioHIB is not currently in a state that supports adding new images
+	 */
+	public void addImage(BioHipiImageHeader imageHeader, InputStream imageStream) throws IOException {
+
+		if (fileMode != FILE_MODE_WRITE) {
+			throw new IOException("BioHIB [" + indexFilePath.getName() + "] is not opened for writing. Must successfully open BioHIB for writing before calling this method.");
+		}
+
+		// Read image input stream and convert to byte[]
+		addImage(imageHeader, ByteUtils.inputStreamToByteArray(imageStream));
+	}
+
+	/**
+	 * Add image to the BioHIB from the image data held in memory, without copying it first.
+	 *
+	 * @param imageHeader initialized image header
+	 * @param imageBytes image data, which is not decoded or verified to be consistent with the provided image header
+	 *
+	 * @throws IOException in the event of any I/O errors or if the BioHIB is not currently in a state that supports adding new images
+	 */
+	public void addImage(BioHipiImageHeader imageHeader, byte[] imageBytes) throws IOException {
+
+		if (fileMode != FILE_MODE_WRITE) {
+			throw new IOException("BioHIB [" + indexFilePath.getName() + "] is not opened for writing. Must successfully open BioHIB for writing before calling this method.");
+		}
+
+		// Compress image data, unless it does not shrink
+		BioHibCompression imageCompression = BioHibCompression.NONE;
+		if (compression != BioHibCompression.NONE) {
+			ByteArrayOutputStream compressedStream = new ByteArrayOutputStream(imageBytes.length / 2);
+			OutputStream os = compression.createOutputStream(compressedStream, conf);
+			os.write(imageBytes);
+			os.close();
+			if (compressedStream.size() < imageBytes.length) {
+				imageBytes = compressedStream.toByteArray();
+				imageCompression = compression;
+			}
+		}
+
+		writeRecord(imageHeader, imageBytes, null, imageBytes.length, imageCompression);
+	}
 
-		if (blockSize <= 0) {
-			blockSize = fs.getDefaultBlockSize(dataFilePath);
+	/**
+	 * Add image to the BioHIB from an input stream of known length. Unless the BioHIB is compressed, the image data is copied
+	 * from the stream to the data file through a fixed-size buffer instead of being held in memory.
+	 *
+	 * @param imageHeader initialized image header
+	 * @param imageStream input stream containing the image data. This data is not decoded or verified to be consistent with the provided image header.
+	 * @param imageLength number of bytes of image data to read from the stream
+	 *
+	 * @throws IOException in the event of any I/O errors or if the BioHIB is not currently in a state that supports adding new images.
+	 * If the stream ends before imageLength bytes, the data file holds a partial image record and the BioHIB must be discarded.
+	 */
+	public void addImage(BioHipiImageHeader imageHeader, InputStream imageStream, long imageLength) throws IOException {
+
+		if (fileMode != FILE_MODE_WRITE) {
+			throw new IOException("BioHIB [" + indexFilePath.getName() + "] is not opened for writing. Must successfully open BioHIB for writing before calling this method.");
 		}
 
-		if (replication <= 0) {
-			replication = fs.getDefaultReplication(dataFilePath);
+		if (imageLength < 0 || imageLength > Integer.MAX_VALUE) {
+			throw new IOException("Invalid image length [" + imageLength + "] for BioHIB [" + indexFilePath.getName() + "].");
 		}
-		try {
-			indexOutputStream = new DataOutputStream(fs.create(indexFilePath));
-			dataOutputStream = new DataOutputStream(fs.create(dataFilePath, true, fs.getConf().getInt("io.file.buffer.size", 4096), replication, blockSize));
-			currentOffset = 0;
-			writeBundleHeader();
-		} catch (IOException ex) {
-			System.err.println("I/O exception while attempting to open BioHIB [" + indexFilePath.getName() + "] for writing with overwrite [" + overwrite + "].");
-			System.err.println(ex.getMessage());
-			indexOutputStream = null;
-			dataOutputStream = null;
-			indexInputStream = null;
+
+		if (compression != BioHibCompression.NONE) {
+			// The compressed length must be known before the record is written
+			byte imageBytes[] = new byte[(int)imageLength];
+			new DataInputStream(imageStream).readFully(imageBytes);
+			addImage(imageHeader, imageBytes);
 			return;
 		}
 
-		// Indicates success
-		fileMode = FILE_MODE_WRITE;
+		writeRecord(imageHeader, null, imageStream, (int)imageLength, BioHibCompression.NONE);
 	}
 
 	/**
-	 * BioHIB index file header structure:
-	 * BOF
-	 * 4 bytes (int): magic signature (0x81911b18) "HIPIIbIH"
-	 * 2 bytes (short int): length of data file name
-	 * var bytes: data file path name
-	 * 16 bytes: reserved for future use
-	 * 4 bytes: number of bytes to skip to reach start of offset list
-	 * [8 byte]*: offsets
-	 * EOF
+	 * Add image file to the BioHIB, copying its data from the file to the data file through a fixed-size buffer. The image header is
+	 * decoded from the first <code>hipi.bundle.header.prefix</code> bytes of the file (default 1 MB), which are read again when the
+	 * image data is copied, or from a second pass over the file if the decoder needs more.
+	 *
+	 * @param fs file system of the image file
+	 * @param file status of the image file, which holds its length
+	 * @param imageFormat storage format of the image file
+	 * @param metaData meta data added to the decoded image header, may be null
+	 *
+	 * @throws IOException in the event of any I/O errors while reading the image file or writing the BioHIB
+	 * @throws IllegalArgumentException if the storage format is not supported
 	 */
-	private void writeBundleHeader() throws IOException {
-		assert indexOutputStream != null;
-		// Magic number
-		indexOutputStream.writeInt(0x81911b18);
-		// Reserved fields (16 bytes)
-		indexOutputStream.writeLong(0);
-		indexOutputStream.writeLong(0);
-		// Number of bytes to skip (0)
-		indexOutputStream.writeInt(0);
+	public void addImage(FileSystem fs, FileStatus file, BioHipiImageFormat imageFormat, Map<String, String> metaData) throws IllegalArgumentException, IOException {
+
+		ImageDecoder decoder = CodecManager.getDecoder(imageFormat);
+		int prefixLength = (int)Math.min(file.getLen(), conf.getInt("hipi.bundle.header.prefix", 1024 * 1024));
+
+		BufferedInputStream imageStream = new BufferedInputStream(fs.open(file.getPath()), Math.max(prefixLength, 1));
+		try {
+			BioHipiImageHeader header = null;
+			imageStream.mark(prefixLength);
+			try {
+				header = decoder.decodeHeader(new CloseShieldInputStream(new BoundedInputStream(imageStream, prefixLength)));
+			} catch (IOException | RuntimeException e) {
+				// Header may extend past the prefix, where decoders fail with
+				// EOF or with a runtime exception on the truncated data
+				if (prefixLength == file.getLen()) {
+					throw e;
+				}
+			}
+			if (header == null && prefixLength < file.getLen()) {
+				InputStream headerStream = fs.open(file.getPath());
+				try {
+					header = decoder.decodeHeader(headerStream);
+				} finally {
+					headerStream.close();
+				}
+			}
+			if (header == null) {
+				throw new IOException("Failed to decode image header of [" + file.getPath() + "].");
+			}
+			if (metaData != null) {
+				header.appendMetaData(metaData);
+			}
+			imageStream.reset();
+			addImage(header, imageStream, file.getLen());
+		} finally {
+			imageStream.close();
+		}
 	}
 
 	/**
-	 * Add image to the BioHIB. This involves appending the image to the data file, and adding the corresponding byte offset to the index file.
+	 * Add local image file to the BioHIB, see {@link #addImage(FileSystem, FileStatus, BioHipiImageFormat, Map)}.
 	 *
-	 * @param imageHeader initialized image header
-	 * @param imageStream input stream containing the image data. This data is not decoded or verified to be consistent with the provided image header. It is simply appended to the BioHIB data file.
+	 * @param file local image file
+	 * @param imageFormat storage format of the image file
+	 * @param metaData meta data added to the decoded image header, may be null
 	 *
-	 * @throws IOException in the event of any I/O errors or if the BioHIB is not currently in a state that supports adding new images
+	 * @throws IOException in the event of any I/O errors while reading the image file or writing the BioHIB
+	 * @throws IllegalArgumentException if the storage format is not supported
 	 */
-	public void addImage(BioHipiImageHeader imageHeader, InputStream imageStream) throws IOException {
+	public void addImage(File file, BioHipiImageFormat imageFormat, Map<String, String> metaData) throws IllegalArgumentException, IOException {
+		FileSystem fs = FileSystem.getLocal(conf).getRawFileSystem();
+		addImage(fs, fs.getFileStatus(new Path(file.getAbsoluteFile().toURI())), imageFormat, metaData);
+	}
 
-		if (fileMode != FILE_MODE_WRITE) {
-			throw new IOException("BioHIB [" + indexFilePath.getName() + "] is not opened for writing. Must successfully open BioHIB for writing before calling this method.");
-		}
+	/**
+	 * Writes an image record to the data file, from imageBytes if not
+	 * null or else by copying imageLength bytes of imageStream, and adds
+	 * it to the index, meta data file and inverted index.
+	 */
+	private void writeRecord(BioHipiImageHeader imageHeader, byte[] imageBytes, InputStream imageStream, int imageLength, BioHibCompression imageCompression) throws IOException {
 
 		// Serialize imageHeader into byte[]
 		ByteArrayOutputStream imageHeaderStream = new ByteArrayOutputStream(1024);
@@ -472,11 +1839,12 @@ public class BioHipiImageBundle {
 		byte imageHeaderBytes[] = imageHeaderStream.toByteArray();
 		int imageHeaderLength = imageHeaderBytes.length;
 
-		// Read image input stream and convert to byte[]
-		byte imageBytes[] = ByteUtils.inputStreamToByteArray(imageStream);
-		int imageLength = imageBytes.length;
+		// Compression is stored in the most significant byte of the format
+		int imageFormatInt = (imageCompression.toInteger() << 24) | imageHeader.getStorageFormat().toInteger();
 
-		int imageFormatInt = imageHeader.getStorageFormat().toInteger();
+		if (alignBlocks) {
+			padToBlockBoundary(12L + imageHeaderLength + imageLength);
+		}
 
 		sig[0] = (byte) ((imageHeaderLength >> 24));
 		sig[1] = (byte) ((imageHeaderLength >> 16) & 0xff);
@@ -495,10 +1863,86 @@ public class BioHipiImageBundle {
 
 		dataOutputStream.write(sig);
 		dataOutputStream.write(imageHeaderBytes);
-		dataOutputStream.write(imageBytes);
+		if (imageBytes != null) {
+			dataOutputStream.write(imageBytes);
+		} else {
+			copyImageData(imageStream, imageLength);
+		}
 		
 		currentOffset += 12 + imageHeaderLength + imageLength;
-		indexOutputStream.writeLong(currentOffset);
+		if (alignBlocks) {
+			// Padding may still be added to the record
+			indexEntryPending = true;
+			pendingImageHeaderLength = imageHeaderLength;
+			pendingImageLength = imageLength;
+			pendingImageFormatInt = imageFormatInt;
+			pendingFingerprint = imageHeader.getMetaDataFingerprint();
+		} else {
+			writeIndexEntry(currentOffset, imageHeaderLength, imageLength, imageFormatInt, imageHeader.getMetaDataFingerprint());
+		}
+		metaOutputStream.write(imageHeaderBytes);
+		if (invertedIndex != null) {
+			invertedIndex.add(imageHeader, imageCount);
+		}
+		imageCount++;
+	}
+
+	/**
+	 * Pads the data file up to the next block boundary if an image record
+	 * of the given length would straddle it but fits into a block, then
+	 * writes the pending index entry of the previous record, which ends
+	 * after the padding. Padding needs room for its 12-byte marker and a
+	 * previous record to be counted to, otherwise the record straddles
+	 * the boundary.
+	 */
+	private void padToBlockBoundary(long recordLength) throws IOException {
+		while (blockStart + blockSize <= currentOffset) {
+			blockStart += blockSize;
+		}
+		long paddingLength = blockStart + blockSize - currentOffset;
+		if (indexEntryPending && recordLength > paddingLength && recordLength <= blockSize
+				&& paddingLength >= 12 && paddingLength - 12 <= Integer.MAX_VALUE) {
+			int length = (int) (paddingLength - 12);
+			dataOutputStream.writeInt(0);
+			dataOutputStream.writeInt(length);
+			dataOutputStream.writeInt(0);
+			while (length > 0) {
+				int n = Math.min(length, PADDING.length);
+				dataOutputStream.write(PADDING, 0, n);
+				length -= n;
+			}
+			currentOffset += paddingLength;
+		}
+		writePendingIndexEntry();
+	}
+
+	/**
+	 * Writes the deferred index entry of the last image record, see
+	 * {@link #setBlockAlignment(boolean)}.
+	 */
+	private void writePendingIndexEntry() throws IOException {
+		if (indexEntryPending) {
+			writeIndexEntry(currentOffset, pendingImageHeaderLength, pendingImageLength, pendingImageFormatInt, pendingFingerprint);
+			indexEntryPending = false;
+		}
+	}
+
+	/**
+	 * Copies length bytes of image data from a stream to the data file.
+	 */
+	private void copyImageData(InputStream imageStream, int length) throws IOException {
+		if (copyBuffer == null) {
+			copyBuffer = new byte[COPY_BUFFER_SIZE];
+		}
+		int remaining = length;
+		while (remaining > 0) {
+			int numBytesRead = imageStream.read(copyBuffer, 0, Math.min(remaining, copyBuffer.length));
+			if (numBytesRead < 0) {
+				throw new EOFException("Image data of BioHIB [" + indexFilePath.getName() + "] ended after " + (length - remaining) + " of " + length + " bytes.");
+			}
+			dataOutputStream.write(copyBuffer, 0, numBytesRead);
+			remaining -= numBytesRead;
+		}
 	}
 
 	public void addImage(InputStream inputStream, BioHipiImageFormat imageFormat, HashMap<String, String> metaData) throws IllegalArgumentException, IOException {
@@ -512,7 +1956,7 @@ public class BioHipiImageBundle {
 		if (metaData != null)
 			header.appendMetaData(metaData);
 
-		addImage(header, new ByteArrayInputStream(imageBytes));
+		addImage(header, imageBytes);
 
 	}
 
@@ -544,22 +1988,15 @@ public class BioHipiImageBundle {
 		assert dataOutputStream == null;
 		assert indexInputStream == null;
 
-		List<Long> offsets = null;
-
 		try {
-			if (seekToImageIndex == 0) {
-				indexInputStream = new DataInputStream(fs.open(indexFilePath));
-				readBundleHeader();
-				hibReader = new BioHibReader(fs, dataFilePath);
-			} else {
-				// Attempt to seek to desired image position
-				indexInputStream = new DataInputStream(fs.open(indexFilePath));
-				readBundleHeader();
-				offsets = readOffsets(seekToImageIndex);
-				if (offsets.size() == seekToImageIndex) {
-					hibReader = new BioHibReader(fs, dataFilePath, offsets.get(offsets.size()-1), 0);
-				}
-			}      
+			// Seek index and data file directly to the desired image position
+			indexInputStream = fs.open(indexFilePath);
+			readBundleHeader();
+			imageCount = (int) ((fs.getFileStatus(indexFilePath).getLen() - indexHeaderLength) / indexEntryLength);
+			if (seekToImageIndex <= imageCount) {
+				indexInputStream.seek(indexHeaderLength + (long) indexEntryLength * seekToImageIndex);
+				hibReader = new BioHibReader(fs, dataFilePath, readImageOffset(seekToImageIndex), 0);
+			}
 		} catch (IOException ex) {
 			System.err.println("I/O exception while attempting to open BioHIB [" + indexFilePath.getName() + "] for reading.");
 			System.err.println(ex.getMessage());
@@ -569,13 +2006,10 @@ public class BioHipiImageBundle {
 			return;
 		}
 
-		if (seekToImageIndex != 0) {
-			if (offsets == null) {
-				throw new IOException("Failed to read file offsets for BioHIB [" + indexFilePath.getName() + "].");
-			}
-			if (offsets.size() != seekToImageIndex) {
-				throw new IOException("Failed to seek to image index [" + seekToImageIndex + "]. Check that it is not past end of file.");
-			}
+		if (seekToImageIndex > imageCount) {
+			indexInputStream.close();
+			indexInputStream = null;
+			throw new IOException("Failed to seek to image index [" + seekToImageIndex + "]. Check that it is not past end of file.");
 		}
 
 		// Indicates success
@@ -595,13 +2029,23 @@ public class BioHipiImageBundle {
 			throw new IOException("Corrupted BioHIB header: signature mismatch.");
 		}
 
-		// Use readLong to skip reserved fields instead of skip because
-		// skip doesn't guarantee success. If readLong reaches EOF will
-		// throw exception.
-		indexInputStream.readLong();
+		// Index version, version 1 index files store 0
+		int version = indexInputStream.readInt();
+		indexVersion = version == 0 ? BioHibIndex.VERSION_1 : version;
+		try {
+			indexEntryLength = BioHibIndex.getEntryLength(indexVersion);
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Unsupported BioHIB index version [" + version + "].");
+		}
+
+		// Use readInt/readLong to skip reserved fields instead of skip
+		// because skip doesn't guarantee success. If readLong reaches EOF
+		// will throw exception.
+		indexInputStream.readInt();
 		indexInputStream.readLong();
 
 		int skipOver = indexInputStream.readInt();
+		indexHeaderLength = 4 + 16 + 4 + skipOver;
 		while (skipOver > 0) {
 			long skipped = indexInputStream.skip(skipOver);
 			if (skipped <= 0) {
@@ -611,6 +2055,36 @@ public class BioHipiImageBundle {
 		}
 	}
 
+	/**
+	 * Reads the complete offset list of the index file into a {@link
+	 * BioHibIndex}. Unlike {@link #readAllOffsets()} the offsets are not
+	 * boxed and are read in bulk, and the result does not depend on
+	 * previous reads of the index file.
+	 *
+	 * @return the offset list of the BioHIB
+	 *
+	 * @throws IOException if the BioHIB is not opened for reading or the
+	 * index file cannot be read
+	 */
+	public BioHibIndex readIndex() throws IOException {
+		if (fileMode != FILE_MODE_READ) {
+			throw new IOException("BioHIB [" + indexFilePath.getName() + "] is not opened for reading. Must successfully open BioHIB for reading before calling this method.");
+		}
+		return BioHibIndex.read(indexInputStream, indexHeaderLength, imageCount, indexVersion);
+	}
+
+	/**
+	 * @return Version of the index file, see {@link BioHibIndex}
+	 *
+	 * @throws IOException if the BioHIB is not opened for reading
+	 */
+	public int getIndexVersion() throws IOException {
+		if (fileMode != FILE_MODE_READ) {
+			throw new IOException("BioHIB [" + indexFilePath.getName() + "] is not opened for reading. Must successfully open BioHIB for reading before calling this method.");
+		}
+		return indexVersion;
+	}
+
 	/**
 	 * 
 	 * @return a {@link List} of image offsets
@@ -637,9 +2111,12 @@ public class BioHipiImageBundle {
 	 */
 	public List<Long> readOffsets(int maximumNumber) {
 		ArrayList<Long> offsets = new ArrayList<Long>(maximumNumber);
+		byte[] entryRemainder = new byte[indexEntryLength - 8];
 		for (int i = 0; i < maximumNumber || maximumNumber == 0; i++) {
 			try {
-				offsets.add(indexInputStream.readLong());
+				long offset = indexInputStream.readLong();
+				indexInputStream.readFully(entryRemainder);
+				offsets.add(offset);
 			} catch (IOException e) {
 				break;
 			}
@@ -647,6 +2124,125 @@ public class BioHipiImageBundle {
 		return offsets;
 	}
 
+	/**
+	 * @return The number of images in the BioHIB, as recorded in its index
+	 * file
+	 *
+	 * @throws IOException if the BioHIB is not opened for reading
+	 */
+	public int getImageCount() throws IOException {
+		if (fileMode != FILE_MODE_READ) {
+			throw new IOException("BioHIB [" + indexFilePath.getName() + "] is not opened for reading. Must successfully open BioHIB for reading before calling this method.");
+		}
+		return imageCount;
+	}
+
+	/**
+	 * Looks up the byte offset of an image record in the data file. This
+	 * takes a single positional read of the index file, independently of
+	 * the position of the image in the BioHIB.
+	 *
+	 * @param index zero-based index of the image in the BioHIB
+	 * @return byte offset to the beginning of the image record
+	 *
+	 * @throws IOException if the BioHIB is not opened for reading or the
+	 * index file cannot be read
+	 * @throws IllegalArgumentException if index is negative or past the
+	 * last image
+	 */
+	public long getImageOffset(int index) throws IOException, IllegalArgumentException {
+		if (fileMode != FILE_MODE_READ) {
+			throw new IOException("BioHIB [" + indexFilePath.getName() + "] is not opened for reading. Must successfully open BioHIB for reading before calling this method.");
+		}
+		if (index < 0 || index >= imageCount) {
+			throw new IllegalArgumentException("Image index [" + index + "] out of range [0, " + imageCount + ").");
+		}
+		return readImageOffset(index);
+	}
+
+	/**
+	 * Image record i starts where record i-1 ends, so its offset is the
+	 * (i-1)-th entry of the index file.
+	 */
+	private long readImageOffset(int index) throws IOException {
+		if (index == 0) {
+			return 0;
+		}
+		byte[] entry = new byte[8];
+		indexInputStream.readFully(indexHeaderLength + (long) indexEntryLength * (index - 1), entry);
+		return ByteBuffer.wrap(entry).getLong();
+	}
+
+	/**
+	 * Reads and decodes a single image using the index file to seek
+	 * directly to its record in the data file. Subsequent calls to {@link
+	 * #next()} continue with the image that follows it.
+	 *
+	 * @param index zero-based index of the image in the BioHIB
+	 * @return the decoded image
+	 *
+	 * @throws IOException if the BioHIB is not opened for reading or the
+	 * image record cannot be read or decoded
+	 * @throws IllegalArgumentException if index is out of range
+	 */
+	public BioHipiImage readImage(int index) throws IOException, IllegalArgumentException {
+		long offset = getImageOffset(index);
+		hibReader.seek(offset);
+		BioHipiImage image = null;
+		if (hibReader.nextKeyValue() && hibReader.getCurrentRecordOffset() == offset) {
+			image = hibReader.getCurrentValue();
+		}
+		if (image == null) {
+			throw new IOException("Failed to read image [" + index + "] of BioHIB [" + indexFilePath.getName() + "] at offset [" + offset + "].");
+		}
+		return image;
+	}
+
+	/**
+	 * Reads a single image header using the index file to seek directly to
+	 * its record in the data file. The image data is not read.
+	 *
+	 * @param index zero-based index of the image in the BioHIB
+	 * @return the image header
+	 *
+	 * @throws IOException if the BioHIB is not opened for reading or the
+	 * image record cannot be read
+	 * @throws IllegalArgumentException if index is out of range
+	 */
+	public BioHipiImageHeader readHeader(int index) throws IOException, IllegalArgumentException {
+		long offset = getImageOffset(index);
+		hibReader.seek(offset);
+		if (!hibReader.nextHeader()) {
+			throw new IOException("Failed to read header of image [" + index + "] of BioHIB [" + indexFilePath.getName() + "] at offset [" + offset + "].");
+		}
+		return hibReader.getCurrentKey();
+	}
+
+	/**
+	 * Builds a version 2 index for a BioHIB with a version 1 index file by
+	 * reading the signature and image header of every image record.
+	 */
+	private BioHibIndex scanRecordInfo(BioHibIndex index) throws IOException {
+		int count = index.size();
+		int[] imageHeaderLengths = new int[count];
+		int[] imageLengths = new int[count];
+		byte[] imageFormats = new byte[count];
+		byte[] compressions = new byte[count];
+		long[] fingerprints = new long[count];
+		for (int i = 0; i < count; i++) {
+			hibReader.seek(index.getStartOffset(i));
+			if (!hibReader.nextHeader()) {
+				throw new IOException("Failed to read header of image [" + i + "] of BioHIB [" + indexFilePath.getName() + "].");
+			}
+			imageHeaderLengths[i] = hibReader.imageHeaderLength;
+			imageLengths[i] = hibReader.imageLength;
+			imageFormats[i] = (byte) hibReader.getImageStorageFormat().toInteger();
+			compressions[i] = (byte) hibReader.getImageCompression().toInteger();
+			fingerprints[i] = hibReader.getCurrentKey().getMetaDataFingerprint();
+		}
+		return new BioHibIndex(index.getEndOffsets(), imageHeaderLengths, imageLengths, imageFormats, compressions, fingerprints);
+	}
+
 	public boolean next() throws IOException {
 		if (fileMode != FILE_MODE_READ) {
 			throw new IOException("BioHIB [" + indexFilePath.getName() + "] is not opened for reading. Must successfully open BioHIB for reading before calling this method.");
@@ -695,49 +2291,290 @@ public class BioHipiImageBundle {
 		}
 
 		if (indexOutputStream != null) {
+			writePendingIndexEntry();
 			indexOutputStream.close();
 			indexOutputStream = null;
 		}
 
+		if (metaOutputStream != null) {
+			metaOutputStream.close();
+			metaOutputStream = null;
+		}
+
+		if (invertedIndex != null) {
+			invertedIndex.write(FileSystem.get(conf), invertedIndexFilePath);
+			invertedIndex = null;
+		}
+
 		fileMode = FILE_MODE_UNDEFINED;
 	}
 
 	/**
-	 * Appends another BioHIB to the current BioHIB. This involves concatenating the underlying data files and index files.
+	 * Writes the image header of an appended image to the meta data file
+	 * and adds it to the inverted index.
+	 */
+	private void appendMetaData(BioHipiImageHeader imageHeader) throws IOException {
+		imageHeader.write(metaOutputStream);
+		if (invertedIndex != null) {
+			invertedIndex.add(imageHeader, imageCount);
+		}
+		imageCount++;
+	}
+
+	/**
+	 * Writes the index entries of the image records of another BioHIB,
+	 * whose data has just been added to the end of the data file, and adds
+	 * their image headers to the meta data file and inverted index.
+	 *
+	 * @param headers image headers of the records, or null to read them
+	 * from the meta data file of the other BioHIB
+	 */
+	private void appendRecords(BioHipiImageBundle bundle, BioHibIndex index, List<BioHipiImageHeader> headers) throws IOException {
+
+		// Shift the end offsets past the current images
+		long lastOffset = currentOffset;
+		for (int j = 0; j < index.size(); j++) {
+			currentOffset = index.getEndOffset(j) + lastOffset;
+			int imageFormatInt = (index.getCompression(j).toInteger() << 24) | index.getImageFormat(j).toInteger();
+			writeIndexEntry(currentOffset, index.getImageHeaderLength(j), index.getImageLength(j), imageFormatInt, index.getMetaDataFingerprint(j));
+		}
+
+		// Concatenate meta data file and extend inverted index
+		if (headers == null) {
+			BioHibMetaReader metaReader = bundle.openMetaReader();
+			while (metaReader.nextHeader()) {
+				appendMetaData(metaReader.getCurrentKey());
+			}
+			metaReader.close();
+		} else {
+			for (BioHipiImageHeader header : headers) {
+				appendMetaData(header);
+			}
+		}
+		indexOutputStream.flush();
+		metaOutputStream.flush();
+	}
+
+	/**
+	 * Reads the index of another BioHIB, with the record info of every
+	 * image, and its image headers if it has no meta data file. The other
+	 * BioHIB must be open for reading.
+	 */
+	private static BioHibIndex readAppendedIndex(BioHipiImageBundle bundle, List<BioHipiImageHeader> headers) throws IOException {
+		BioHibIndex index = bundle.readIndex();
+		if (!index.hasRecordInfo()) {
+			index = bundle.scanRecordInfo(index);
+		}
+		if (!bundle.hasMetaFile()) {
+			for (int j = 0; j < index.size(); j++) {
+				headers.add(bundle.readHeader(j));
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * Appends another BioHIB to the current BioHIB. This involves concatenating the underlying data files, index files and meta data files. If the appended BioHIB has no meta data file, its image headers are read from its data file. The other BioHIB is left unchanged; see {@link #concat} to move its images instead of copying them.
+	 * <br>
+	 * The data file is copied as in {@link #concat}, without reading it through this process on the local file system. If copying a
+	 * local data file fails, the current data file is truncated back to its last image record, so the BioHIB stays consistent.
 	 * 
-	 * @param bundle target BioHIB to be appended to the current BioHIB
+	 * @param bundle target BioHIB to be appended to the current BioHIB. It must not be open.
+	 *
+	 * @throws IOException if the current BioHIB is not open for writing, or the other BioHIB cannot be read or copied
 	 */
-	public void append(BioHipiImageBundle bundle) {
+	public void append(BioHipiImageBundle bundle) throws IOException {
+
+		if (fileMode != FILE_MODE_WRITE) {
+			throw new IOException("BioHIB [" + indexFilePath.getName() + "] is not opened for writing. Must successfully open BioHIB for writing before calling this method.");
+		}
+
+		bundle.openForRead();
+		if (bundle.fileMode != FILE_MODE_READ) {
+			throw new IOException("Failed to open BioHIB [" + bundle.indexFilePath.getName() + "] for reading.");
+		}
+		List<BioHipiImageHeader> headers = new ArrayList<BioHipiImageHeader>();
+		BioHibIndex index;
 		try {
-			bundle.openForRead();
-			FileStatus dataFileStatus = bundle.getDataFileStatus();
-			List<Long> offsets = bundle.readAllOffsets();
-
-			// Concatenate data file
-			FileSystem fs = FileSystem.get(conf);
-			DataInputStream dataInputStream = new DataInputStream(fs.open(dataFileStatus.getPath()));
-			int numBytesRead = 0;
-			byte[] data = new byte[1024 * 1024]; // Transfer in 1MB blocks
-			while ((numBytesRead = dataInputStream.read(data)) > -1) {
-				dataOutputStream.write(data, 0, numBytesRead);
-			}
-			dataInputStream.close();
-
-			// Concatenate index file
-			long lastOffset = currentOffset;
-			for (int j = 0; j < offsets.size(); j++) {
-				currentOffset = (long) (offsets.get(j)) + lastOffset;
-				indexOutputStream.writeLong(currentOffset);
-			}
-
-			// Clean up
-			dataOutputStream.flush();
-			indexOutputStream.flush();
+			index = readAppendedIndex(bundle, headers);
+			if (bundle.getDataFileStatus().getLen() != index.getDataLength()) {
+				throw new IOException("BioHIB data file [" + bundle.dataFilePath.getName() + "] does not end with its last image record at byte [" + index.getDataLength() + "].");
+			}
+		} finally {
 			bundle.close();
-		} catch (IOException e) {
-			e.printStackTrace();
 		}
 
+		// The data file cannot be copied to while it is open
+		FileSystem fs = FileSystem.get(conf);
+		writePendingIndexEntry();
+		dataOutputStream.close();
+		dataOutputStream = null;
+		try {
+			copyDataFile(fs, bundle.dataFilePath, index.getDataLength());
+		} finally {
+			dataOutputStream = new DataOutputStream(appendFile(fs, dataFilePath));
+			blockStart = findLastBlockStart(fs);
+		}
+
+		// Concatenate index and meta data files
+		appendRecords(bundle, index, bundle.hasMetaFile() ? null : headers);
+	}
+
+	/**
+	 * Moves the images of other BioHIBs to the end of the current BioHIB,
+	 * which must be open for writing (see {@link #openForWrite} and {@link
+	 * #openForAppend}). Unlike {@link #append}, which copies the image data
+	 * and leaves the other BioHIBs unchanged, the image data is moved
+	 * without reading it through this process:
+	 * <ul>
+	 * <li>on the local file system the data files are copied with {@link
+	 * FileChannel#transferTo}, which leaves copying to the kernel;</li>
+	 * <li>on other file systems, e.g. HDFS, the data files are moved next to
+	 * the current data file and merged into it with {@link
+	 * FileSystem#concat}, which only relinks their blocks. File systems
+	 * that cannot concatenate the files fall back to copying them.</li>
+	 * </ul>
+	 * Only the index entries, with shifted offsets, and the image headers of
+	 * the moved images are written. The other BioHIBs are deleted, one by
+	 * one once their images have been moved.
+	 * <br>
+	 * On checksummed file systems (e.g., the local file system) the checksum
+	 * file of the data file is deleted rather than recomputed, as in {@link
+	 * #openForAppend}, so the data file is no longer verified when read.
+	 *
+	 * @param bundles BioHIBs to move to the end of the current BioHIB, in
+	 * order. They must not be open.
+	 *
+	 * @throws IOException if the current BioHIB is not open for writing, or
+	 * another BioHIB cannot be read or moved. The images of the BioHIBs
+	 * moved before are kept.
+	 */
+	public void concat(BioHipiImageBundle... bundles) throws IOException {
+
+		if (fileMode != FILE_MODE_WRITE) {
+			throw new IOException("BioHIB [" + indexFilePath.getName() + "] is not opened for writing. Must successfully open BioHIB for writing before calling this method.");
+		}
+
+		// The data file cannot be concatenated while it is open
+		FileSystem fs = FileSystem.get(conf);
+		writePendingIndexEntry();
+		dataOutputStream.close();
+		dataOutputStream = null;
+		try {
+			for (BioHipiImageBundle bundle : bundles) {
+				bundle.openForRead();
+				if (bundle.fileMode != FILE_MODE_READ) {
+					throw new IOException("Failed to open BioHIB [" + bundle.indexFilePath.getName() + "] for reading.");
+				}
+				List<BioHipiImageHeader> headers = new ArrayList<BioHipiImageHeader>();
+				BioHibIndex index;
+				try {
+					index = readAppendedIndex(bundle, headers);
+					if (bundle.getDataFileStatus().getLen() != index.getDataLength()) {
+						throw new IOException("BioHIB data file [" + bundle.dataFilePath.getName() + "] does not end with its last image record at byte [" + index.getDataLength() + "].");
+					}
+				} finally {
+					bundle.close();
+				}
+
+				moveDataFile(fs, bundle.dataFilePath, index.getDataLength());
+				appendRecords(bundle, index, bundle.hasMetaFile() ? null : headers);
+				for (Path path : new Path[] { bundle.indexFilePath, bundle.metaFilePath, bundle.invertedIndexFilePath }) {
+					fs.delete(path, false);
+				}
+			}
+		} finally {
+			dataOutputStream = new DataOutputStream(appendFile(fs, dataFilePath));
+			blockStart = findLastBlockStart(fs);
+		}
+	}
+
+	/**
+	 * Moves a data file to the end of the (closed) data file of the current
+	 * BioHIB, see {@link #concat}.
+	 */
+	private void moveDataFile(FileSystem fs, Path source, long length) throws IOException {
+
+		// Nothing to move, and HDFS does not concatenate empty files
+		if (length == 0) {
+			fs.delete(source, false);
+			return;
+		}
+
+		if (BioHibReader.toLocalFile(fs, dataFilePath) != null) {
+			copyDataFile(fs, source, length);
+			fs.delete(source, false);
+			return;
+		}
+
+		// HDFS only concatenates files of the same directory
+		Path moved = source;
+		if (!source.getParent().equals(dataFilePath.getParent())) {
+			moved = new Path(dataFilePath.getParent(), "." + dataFilePath.getName() + "." + source.getName());
+			if (!fs.rename(source, moved)) {
+				throw new IOException("Failed to move BioHIB data file [" + source + "] to [" + moved + "].");
+			}
+		}
+		try {
+			fs.concat(dataFilePath, new Path[] { moved });
+			return;
+		} catch (UnsupportedOperationException e) {
+			// Copied below
+		} catch (IOException | IllegalArgumentException e) {
+			// E.g., the blocks of the data files have different sizes
+			LOG.warn("Failed to concatenate BioHIB data file [" + source + "], copying it instead", e);
+		}
+		copyDataFile(fs, moved, length);
+		fs.delete(moved, false);
+	}
+
+	/**
+	 * Copies the first length bytes of a data file to the end of the
+	 * (closed) data file of the current BioHIB, leaving the source file
+	 * unchanged, see {@link #append} and {@link #concat}. Local files are
+	 * copied with {@link FileChannel#transferTo}, and the current data file
+	 * is truncated back to its former length if the copy fails. Other data
+	 * files are copied through a buffer of COPY_BUFFER_SIZE bytes.
+	 */
+	private void copyDataFile(FileSystem fs, Path source, long length) throws IOException {
+
+		File localFile = BioHibReader.toLocalFile(fs, dataFilePath);
+		File localSource = BioHibReader.toLocalFile(fs, source);
+		if (localFile != null && localSource != null) {
+			FileInputStream in = new FileInputStream(localSource);
+			FileOutputStream out = new FileOutputStream(localFile, true);
+			try {
+				FileChannel inChannel = in.getChannel();
+				FileChannel outChannel = out.getChannel();
+				long start = outChannel.size();
+				try {
+					long position = 0;
+					while (position < length) {
+						position += inChannel.transferTo(position, length - position, outChannel);
+					}
+				} catch (IOException e) {
+					outChannel.truncate(start);
+					throw e;
+				}
+			} finally {
+				in.close();
+				out.close();
+			}
+			if (fs instanceof ChecksumFileSystem) {
+				ChecksumFileSystem checksumFs = (ChecksumFileSystem) fs;
+				checksumFs.getRawFileSystem().delete(checksumFs.getChecksumFile(dataFilePath), false);
+			}
+			return;
+		}
+
+		FSDataOutputStream out = appendFile(fs, dataFilePath);
+		FSDataInputStream in = fs.open(source);
+		try {
+			IOUtils.copyBytes(new BoundedInputStream(in, length), out, COPY_BUFFER_SIZE, false);
+		} finally {
+			in.close();
+			out.close();
+		}
 	}
 
 }
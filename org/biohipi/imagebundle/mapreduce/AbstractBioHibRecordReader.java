@@ -0,0 +1,232 @@
+package org.biohipi.imagebundle.mapreduce;
+
+import org.biohipi.image.BioHipiImageHeader;
+import org.biohipi.image.BioHipiImageHeader.BioHipiImageFormat;
+import org.biohipi.imagebundle.BioHibInvertedIndex.MatchMode;
+import org.biohipi.imagebundle.BioHipiImageBundle;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileSplit;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * Base class of the MapReduce {@link RecordReader}s for BioHIB files, whose keys are the
+ * {@link BioHipiImageHeader}s of the image records of a split. It walks the byte ranges of the
+ * split with a {@link org.biohipi.imagebundle.BioHipiImageBundle.BioHibReader} and skips the
+ * records excluded by the filters of {@link BioHibInputFormat}, while subclasses decide how much
+ * of each record is read ({@link #readRecord}) and what value is emitted.
+ * <br>
+ * Both {@link FileSplit}s and multi-range {@link CombineFileSplit}s are supported. Each range
+ * of a CombineFileSplit must start at an image record and is read in turn.
+ * <br>
+ * Setting <code>hipi.reader.mmap</code> to true in the job configuration reads the records
+ * of each split in memory-mapped mode (see
+ * {@link org.biohipi.imagebundle.BioHipiImageBundle.BioHibReader#BioHibReader(FileSystem, Path, long, long, boolean)}).
+ * Otherwise, readers that read the image data prefetch up to <code>hipi.reader.prefetch.records</code>
+ * records (default 0, disabled) holding at most <code>hipi.reader.prefetch.bytes</code> bytes
+ * (default 64 MB) in a background thread (see
+ * {@link org.biohipi.imagebundle.BioHipiImageBundle.BioHibReader#setPrefetch(int, long)}).
+ * Setting <code>hipi.reader.reuse</code> to true makes the reader reuse its buffers, keys and
+ * values from record to record, so mappers that keep a key or value beyond the call to map must
+ * copy it (see
+ * {@link org.biohipi.imagebundle.BioHipiImageBundle.BioHibReader#setObjectReuse(boolean)}).
+ * If a meta data filter is configured (see {@link BioHibInputFormat#setMetaDataFilter}), records
+ * whose header does not match it are skipped. So are records in a storage format excluded with
+ * {@link BioHibInputFormat#setImageFormats}.
+ * <br>
+ * The number of records and bytes read, the records skipped and the time spent reading are
+ * reported as {@link BioHibCounter}s.
+ */
+public abstract class AbstractBioHibRecordReader<V> extends RecordReader<BioHipiImageHeader, V> {
+
+  protected Configuration conf;
+  protected TaskAttemptContext context;
+  protected BioHipiImageBundle.BioHibReader reader;
+  private boolean memoryMapped;
+  private int prefetchRecords;
+  private long prefetchBytes;
+  private boolean reuseObjects;
+
+  // Byte ranges of the split, read one after the other
+  private Path[] paths;
+  private long[] starts;
+  private long[] lengths;
+  private int segment = -1;
+  private long totalLength = 0;
+  private long completedLength = 0;
+
+  // Meta data filter, null if not configured
+  private String filterKey;
+  private String filterValue;
+  private MatchMode filterMatch;
+
+  // Storage formats to read, null for all
+  private Set<BioHipiImageFormat> formats;
+
+  private Counter recordsRead;
+  private Counter bytesRead;
+  private Counter recordsSkipped;
+  private Counter readTime;
+
+  @Override
+  public void initialize(InputSplit split, TaskAttemptContext context)
+  throws IOException, IllegalArgumentException {
+
+    this.context = context;
+    conf = context.getConfiguration();
+
+    recordsRead = context.getCounter(BioHibCounter.RECORDS_READ);
+    bytesRead = context.getCounter(BioHibCounter.BYTES_READ);
+    recordsSkipped = context.getCounter(BioHibCounter.RECORDS_SKIPPED);
+    readTime = context.getCounter(BioHibCounter.READ_TIME_US);
+
+    if (split instanceof CombineFileSplit) {
+      CombineFileSplit bundleSplit = (CombineFileSplit)split;
+      paths = bundleSplit.getPaths();
+      starts = bundleSplit.getStartOffsets();
+      lengths = bundleSplit.getLengths();
+    } else {
+      FileSplit bundleSplit = (FileSplit)split;
+      paths = new Path[] { bundleSplit.getPath() };
+      starts = new long[] { bundleSplit.getStart() };
+      lengths = new long[] { bundleSplit.getLength() };
+    }
+    for (long length : lengths) {
+      totalLength += length;
+    }
+
+    // Report locations of first and last byte in image segment
+    System.out.println(getClass().getSimpleName() + "#initialize: Input split starts at byte offset " + starts[0] +
+		       " and ends at byte offset " + (starts[starts.length - 1] + lengths[lengths.length - 1] - 1) +
+		       " (" + starts.length + " range(s))");
+
+    memoryMapped = conf.getBoolean("hipi.reader.mmap", false);
+    prefetchRecords = readsImageData() ? conf.getInt("hipi.reader.prefetch.records", 0) : 0;
+    prefetchBytes = conf.getLong("hipi.reader.prefetch.bytes", 64L * 1024 * 1024);
+    reuseObjects = supportsObjectReuse() && conf.getBoolean("hipi.reader.reuse", false);
+
+    filterKey = conf.get(BioHibInputFormat.METADATA_KEY);
+    filterValue = conf.get(BioHibInputFormat.METADATA_VALUE);
+    filterMatch = MatchMode.valueOf(conf.get(BioHibInputFormat.METADATA_MATCH, MatchMode.EXACT.name()));
+    if (filterKey == null || filterValue == null) {
+      filterKey = null;
+    }
+    formats = BioHibInputFormat.getImageFormats(conf);
+
+    nextSegment();
+  }
+
+  /**
+   * Moves the reader to the next range of the split, reusing the open data file if the range
+   * belongs to the same BioHIB.
+   *
+   * @return false if there are no more ranges
+   */
+  private boolean nextSegment() throws IOException {
+    if (segment >= 0) {
+      completedLength += lengths[segment];
+    }
+    segment++;
+    if (segment >= paths.length) {
+      return false;
+    }
+    long end = starts[segment] + lengths[segment] - 1;
+    if (reader != null && paths[segment].equals(paths[segment - 1])) {
+      reader.setSegment(starts[segment], end);
+    } else {
+      if (reader != null) {
+        reader.close();
+      }
+      FileSystem fs = paths[segment].getFileSystem(conf);
+      reader = new BioHipiImageBundle.BioHibReader(fs, paths[segment], starts[segment], end, memoryMapped);
+      reader.setPrefetch(prefetchRecords, prefetchBytes);
+      reader.setObjectReuse(reuseObjects);
+    }
+    return true;
+  }
+
+  /**
+   * Reads the next image record of the current range with {@link #reader}.
+   *
+   * @return true if a record was read, false at the end of the range
+   *
+   * @throws IOException if the record cannot be read
+   */
+  protected abstract boolean readRecord() throws IOException;
+
+  /**
+   * @return true if {@link #readRecord()} reads the image data of the records, which enables
+   * prefetching. True by default.
+   */
+  protected boolean readsImageData() {
+    return true;
+  }
+
+  /**
+   * @return true if the keys and values of this reader may be refilled in place from record to
+   * record, which enables object reuse. True by default.
+   */
+  protected boolean supportsObjectReuse() {
+    return true;
+  }
+
+  /**
+   * @return Number of bytes of the data file read by the last call to {@link #readRecord()}. By
+   * default the length of the complete record.
+   */
+  protected long getRecordBytesRead() {
+    return reader.getCurrentRecordLength();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (reader != null) {
+      reader.close();
+    }
+  }
+
+  @Override
+  public BioHipiImageHeader getCurrentKey() throws IOException, InterruptedException  {
+    return reader.getCurrentKey();
+  }
+
+  @Override
+  public float getProgress() throws IOException  {
+    if (segment >= paths.length || totalLength == 0) {
+      return 1.f;
+    }
+    return (completedLength + reader.getProgress() * lengths[segment]) / totalLength;
+  }
+
+  @Override
+  public boolean nextKeyValue() throws IOException, InterruptedException  {
+    while (segment < paths.length) {
+      while (true) {
+        long start = System.nanoTime();
+        boolean read = readRecord();
+        readTime.increment((System.nanoTime() - start) / 1000);
+        if (!read) {
+          break;
+        }
+        recordsRead.increment(1);
+        bytesRead.increment(getRecordBytesRead());
+        if ((formats == null || formats.contains(reader.getImageStorageFormat())) &&
+            (filterKey == null || filterMatch.matches(reader.getCurrentKey().getMetaData(filterKey), filterValue))) {
+          return true;
+        }
+        recordsSkipped.increment(1);
+      }
+      nextSegment();
+    }
+    return false;
+  }
+}
@@ -0,0 +1,288 @@
+package org.biohipi.imagebundle.mapreduce;
+
+import org.biohipi.image.BioHipiImage;
+import org.biohipi.image.BioHipiImageHeader;
+import org.biohipi.imagebundle.BioHibIndex;
+import org.biohipi.imagebundle.BioHipiImageBundle;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileSplit;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Inherits from {@link FileInputFormat} and packs the image records of many BioHIB files into
+ * {@link CombineFileSplit}s of up to <code>hipi.combine.maxsize</code> bytes (default 128 MB),
+ * so that a directory of small BioHIBs is processed by a few map tasks instead of one or more
+ * tasks per BioHIB. The filters and sampling of {@link BioHibInputFormat} apply as usual.
+ * <br>
+ * Like Hadoop's CombineFileInputFormat, the records are first cut into chunks at the HDFS block
+ * boundaries of the data files, and chunks are packed in three passes: chunks on the same node,
+ * then chunks on the same rack, then the remaining chunks in input order. Each range of a split
+ * starts at an image record and the {@link AbstractBioHibRecordReader} moves from one BioHIB to
+ * the next within a split, so mappers see a plain sequence of records.
+ */
+public class BioHibCombineInputFormat extends FileInputFormat<BioHipiImageHeader, BioHipiImage> {
+
+	/** Configuration property holding the maximum size of a split in bytes. */
+	public static final String MAX_SIZE = "hipi.combine.maxsize";
+
+	private static final String DEFAULT_RACK = "/default-rack";
+
+	/**
+	 * Record-aligned byte range of a data file that lies in a single
+	 * block (except for the tail of its last record).
+	 */
+	private static class Chunk {
+		private final Path path;
+		private final long start;
+		private final long length;
+		private final String[] hosts;
+		private final String[] racks;
+		private boolean packed = false;
+
+		private Chunk(Path path, long start, long length, String[] hosts, String[] racks) {
+			this.path = path;
+			this.start = start;
+			this.length = length;
+			this.hosts = hosts;
+			this.racks = racks;
+		}
+	}
+
+	/**
+	 * Sets the maximum size of the splits of a job.
+	 *
+	 * @param job job to configure
+	 * @param maxSize maximum number of bytes of a split
+	 */
+	public static void setMaxSplitSize(Job job, long maxSize) {
+		job.getConfiguration().setLong(MAX_SIZE, maxSize);
+	}
+
+	/**
+	 * @see BioHibInputFormat#createRecordReader
+	 */
+	@Override
+	public RecordReader<BioHipiImageHeader, BioHipiImage> createRecordReader(InputSplit split, TaskAttemptContext context)
+			throws IOException, InterruptedException {
+		return new BioHibInputFormat().createRecordReader(split, context);
+	}
+
+	@Override
+	public List<InputSplit> getSplits(JobContext job) throws IOException {
+		Configuration conf = job.getConfiguration();
+		long maxSize = conf.getLong(MAX_SIZE, 128L * 1024 * 1024);
+
+		List<Chunk> chunks = BioHibInputFormat.computeForFiles(conf, listStatus(job), new BioHibInputFormat.FileComputation<Chunk>() {
+				@Override
+				public List<Chunk> compute(Configuration conf, FileStatus file) throws IOException {
+					return computeChunks(conf, file);
+				}
+			});
+
+		// Index chunks by node and by rack, in input order
+		Map<String, List<Chunk>> nodeChunks = new LinkedHashMap<String, List<Chunk>>();
+		Map<String, List<Chunk>> rackChunks = new LinkedHashMap<String, List<Chunk>>();
+		for (Chunk chunk : chunks) {
+			for (String host : chunk.hosts) {
+				addToMap(nodeChunks, host, chunk);
+			}
+			for (String rack : chunk.racks) {
+				addToMap(rackChunks, rack, chunk);
+			}
+		}
+
+		List<InputSplit> splits = new ArrayList<InputSplit>();
+
+		// Full splits of chunks local to one node, then to one rack. The
+		// remainder of each node and rack is left to the next pass.
+		for (Map.Entry<String, List<Chunk>> entry : nodeChunks.entrySet()) {
+			packLocal(entry.getValue(), maxSize, new String[] { entry.getKey() }, splits);
+		}
+		for (Map.Entry<String, List<Chunk>> entry : rackChunks.entrySet()) {
+			packLocal(entry.getValue(), maxSize, null, splits);
+		}
+
+		// Remaining chunks in input order, including the last partial split
+		List<Chunk> split = packLocal(chunks, maxSize, null, splits);
+		if (!split.isEmpty()) {
+			splits.add(createSplit(split, null));
+		}
+		return splits;
+	}
+
+	private static void addToMap(Map<String, List<Chunk>> map, String key, Chunk chunk) {
+		List<Chunk> list = map.get(key);
+		if (list == null) {
+			list = new ArrayList<Chunk>();
+			map.put(key, list);
+		}
+		list.add(chunk);
+	}
+
+	/**
+	 * Packs the unpacked chunks of a node or rack into splits of at most
+	 * maxSize bytes. A split is closed when the next chunk would make it
+	 * exceed maxSize, and a chunk longer than maxSize forms a split of its
+	 * own. The chunks of the last, partial split are left unpacked.
+	 *
+	 * @param hosts locations of the splits, or null for the hosts of
+	 * their chunks
+	 * @return the chunks of the partial split
+	 */
+	private static List<Chunk> packLocal(List<Chunk> localChunks, long maxSize, String[] hosts, List<InputSplit> splits) {
+		List<Chunk> split = new ArrayList<Chunk>();
+		long splitSize = 0;
+		for (Chunk chunk : localChunks) {
+			if (chunk.packed) {
+				continue;
+			}
+			if (!split.isEmpty() && splitSize + chunk.length > maxSize) {
+				splits.add(createSplit(split, hosts));
+				split.clear();
+				splitSize = 0;
+			}
+			split.add(chunk);
+			splitSize += chunk.length;
+			if (splitSize >= maxSize) {
+				splits.add(createSplit(split, hosts));
+				split.clear();
+				splitSize = 0;
+			}
+		}
+		return split;
+	}
+
+	/**
+	 * Creates a split over chunks, marking them as packed. Chunks are
+	 * sorted by file and offset, and adjacent chunks of the same file are
+	 * merged into one range.
+	 */
+	private static CombineFileSplit createSplit(List<Chunk> chunks, String[] hosts) {
+		List<Chunk> sorted = new ArrayList<Chunk>(chunks);
+		Collections.sort(sorted, new Comparator<Chunk>() {
+				@Override
+				public int compare(Chunk a, Chunk b) {
+					int c = a.path.compareTo(b.path);
+					return c != 0 ? c : Long.compare(a.start, b.start);
+				}
+			});
+
+		List<Path> paths = new ArrayList<Path>();
+		List<Long> starts = new ArrayList<Long>();
+		List<Long> lengths = new ArrayList<Long>();
+		Set<String> hostSet = new LinkedHashSet<String>();
+		for (Chunk chunk : sorted) {
+			chunk.packed = true;
+			int last = paths.size() - 1;
+			if (last >= 0 && paths.get(last).equals(chunk.path) && starts.get(last) + lengths.get(last) == chunk.start) {
+				lengths.set(last, lengths.get(last) + chunk.length);
+			} else {
+				paths.add(chunk.path);
+				starts.add(chunk.start);
+				lengths.add(chunk.length);
+			}
+			if (hosts == null) {
+				Collections.addAll(hostSet, chunk.hosts);
+			}
+		}
+		if (hosts == null) {
+			hosts = hostSet.toArray(new String[hostSet.size()]);
+		}
+
+		long[] startOffsets = new long[starts.size()];
+		long[] rangeLengths = new long[lengths.size()];
+		for (int r = 0; r < startOffsets.length; r++) {
+			startOffsets[r] = starts.get(r);
+			rangeLengths[r] = lengths.get(r);
+		}
+		return new CombineFileSplit(paths.toArray(new Path[paths.size()]), startOffsets, rangeLengths, hosts);
+	}
+
+	/**
+	 * Cuts the image records of a BioHIB that pass the filters of the job
+	 * into chunks of consecutive records that start in the same block of
+	 * the data file.
+	 */
+	private static List<Chunk> computeChunks(Configuration conf, FileStatus file) throws IOException {
+		List<Chunk> chunks = new ArrayList<Chunk>();
+
+		Path path = file.getPath();
+		FileSystem fs = path.getFileSystem(conf);
+		BioHipiImageBundle hib = new BioHipiImageBundle(path, conf);
+		hib.openForRead();
+		try {
+			BioHibIndex index = hib.readIndex();
+			if (index.size() == 0) {
+				return chunks;
+			}
+			FileStatus dataFile = hib.getDataFileStatus();
+			BlockLocation[] blkLocations = fs.getFileBlockLocations(dataFile, 0, index.getDataLength());
+
+			int[] records = BioHibInputFormat.lookupRecords(conf, hib);
+			records = BioHibInputFormat.selectRecords(conf, index, records);
+			records = BioHibInputFormat.filterFormats(conf, index, records);
+			records = BioHibInputFormat.sampleRecords(conf, index, records, path);
+			int count = records == null ? index.size() : records.length;
+
+			int i = 0;
+			while (i < count) {
+				int first = records == null ? i : records[i];
+				long start = index.getStartOffset(first);
+				int block = BioHibInputFormat.staticGetBlockIndex(blkLocations, start);
+				long blockEnd = blkLocations[block].getOffset() + blkLocations[block].getLength();
+
+				// Extend chunk over consecutive records starting in the block
+				int last = first;
+				i++;
+				while (i < count) {
+					int next = records == null ? i : records[i];
+					if (next != last + 1 || index.getStartOffset(next) >= blockEnd) {
+						break;
+					}
+					last = next;
+					i++;
+				}
+				long end = index.getEndOffset(last);
+
+				Set<String> hosts = new LinkedHashSet<String>();
+				Set<String> racks = new LinkedHashSet<String>();
+				int endBlock = BioHibInputFormat.staticGetBlockIndex(blkLocations, end - 1);
+				for (int b = block; b <= endBlock; b++) {
+					Collections.addAll(hosts, blkLocations[b].getHosts());
+					for (String topologyPath : blkLocations[b].getTopologyPaths()) {
+						int slash = topologyPath.lastIndexOf('/');
+						racks.add(slash > 0 ? topologyPath.substring(0, slash) : DEFAULT_RACK);
+					}
+				}
+				if (racks.isEmpty()) {
+					racks.add(DEFAULT_RACK);
+				}
+				chunks.add(new Chunk(dataFile.getPath(), start, end - start,
+						hosts.toArray(new String[hosts.size()]), racks.toArray(new String[racks.size()])));
+			}
+		} finally {
+			hib.close();
+		}
+		return chunks;
+	}
+}
@@ -0,0 +1,24 @@
+package org.biohipi.imagebundle.mapreduce;
+
+import org.biohipi.image.BioHipiImageHeader;
+
+/**
+ * Estimates the cost of processing an image record from its header, used by
+ * {@link BioHibInputFormat} to build splits of similar compute work (see
+ * {@link BioHibInputFormat#setCostFunction}). Costs only need to be
+ * comparable with each other, their unit is up to the implementation.
+ * Implementations need a public no-argument constructor and may implement
+ * {@link org.apache.hadoop.conf.Configurable} to receive the job
+ * configuration.
+ */
+public interface BioHibCostFunction {
+
+	/**
+	 * @param header image header of the record, as stored in the meta data
+	 * sidecar file of the BioHIB
+	 * @param recordLength length in bytes of the record in the data file
+	 * @return non-negative cost of processing the record
+	 */
+	public double getCost(BioHipiImageHeader header, long recordLength);
+
+}
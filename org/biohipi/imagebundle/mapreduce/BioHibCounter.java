@@ -0,0 +1,31 @@
+package org.biohipi.imagebundle.mapreduce;
+
+/**
+ * Hadoop counters maintained by the BioHIB record readers (see {@link
+ * AbstractBioHibRecordReader}). Together with the per-format decode times in
+ * the {@link #DECODE_TIME_GROUP} counter group, they show whether a job is
+ * bound by reading the data file or by decoding images.
+ */
+public enum BioHibCounter {
+	/** Image records read from the data file, including skipped ones. */
+	RECORDS_READ,
+	/** Bytes of the data file read for the records. */
+	BYTES_READ,
+	/** Image records skipped by the filters of {@link BioHibInputFormat}. */
+	RECORDS_SKIPPED,
+	/** Time spent reading records and decoding their headers, in microseconds. */
+	READ_TIME_US,
+	/** Images decoded. */
+	IMAGES_DECODED,
+	/** Time spent decoding images, in microseconds. */
+	DECODE_TIME_US,
+	/** Images whose decoder failed or that have no decoder. */
+	DECODE_FAILURES;
+
+	/**
+	 * Counter group holding the time spent decoding images of each {@link
+	 * org.biohipi.image.BioHipiImageHeader.BioHipiImageFormat}, in
+	 * microseconds, with one counter per format name.
+	 */
+	public static final String DECODE_TIME_GROUP = "BioHIB decode time per format (us)";
+}
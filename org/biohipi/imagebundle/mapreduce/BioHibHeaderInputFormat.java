@@ -0,0 +1,40 @@
+package org.biohipi.imagebundle.mapreduce;
+
+import org.biohipi.image.BioHipiImageHeader;
+
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Inherits from {@link FileInputFormat} and processes multiple BioHIB files as input for jobs
+ * that only need the meta data of the images (inventories, manifests, cohort counts, ...). The
+ * splits are the same as those of {@link BioHibInputFormat}, including its filters, but the
+ * {@link BioHibHeaderRecordReader} emits only the {@link BioHipiImageHeader} and the location
+ * ({@link BioHibRecordInfo}) of each image record and seeks over the image data.
+ */
+public class BioHibHeaderInputFormat extends FileInputFormat<BioHipiImageHeader, BioHibRecordInfo> {
+
+	/**
+	 * Creates a {@link BioHibHeaderRecordReader}
+	 */
+	@Override
+	public RecordReader<BioHipiImageHeader, BioHibRecordInfo> createRecordReader(InputSplit split, TaskAttemptContext context)
+			throws IOException, InterruptedException {
+		return new BioHibHeaderRecordReader();
+	}
+
+	/**
+	 * @see BioHibInputFormat#getSplits(JobContext)
+	 */
+	@Override
+	public List<InputSplit> getSplits(JobContext job) throws IOException {
+		return BioHibInputFormat.computeSplits(job, listStatus(job));
+	}
+
+}
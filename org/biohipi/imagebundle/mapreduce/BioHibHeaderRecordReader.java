@@ -0,0 +1,46 @@
+package org.biohipi.imagebundle.mapreduce;
+
+import org.apache.hadoop.mapreduce.RecordReader;
+
+import java.io.IOException;
+
+/**
+ * MapReduce {@link RecordReader} for BioHIB files that reads only the image headers. It uses
+ * {@link org.biohipi.imagebundle.BioHipiImageBundle.BioHibReader#nextHeader()} to read the signature
+ * and header of each image record and seeks over the image data, which is never read or decoded.
+ * The value of each record is its {@link BioHibRecordInfo} (offset and length in the data file).
+ * <br>
+ * Splits, memory-mapped mode and record filters are handled as described in
+ * {@link AbstractBioHibRecordReader}.
+ */
+public class BioHibHeaderRecordReader extends AbstractBioHibRecordReader<BioHibRecordInfo> {
+
+  private final BioHibRecordInfo recordInfo = new BioHibRecordInfo();
+
+  @Override
+  protected boolean readRecord() throws IOException {
+    if (!reader.nextHeader()) {
+      return false;
+    }
+    recordInfo.set(reader.getCurrentRecordOffset(), reader.getCurrentRecordLength());
+    return true;
+  }
+
+  @Override
+  protected boolean readsImageData() {
+    return false;
+  }
+
+  /**
+   * Only the signature and image header of each record are read.
+   */
+  @Override
+  protected long getRecordBytesRead() {
+    return reader.getCurrentRecordLength() - reader.getCurrentImageLength();
+  }
+
+  @Override
+  public BioHibRecordInfo getCurrentValue() throws IOException, InterruptedException  {
+    return recordInfo;
+  }
+}
@@ -2,8 +2,15 @@ package org.biohipi.imagebundle.mapreduce;
 
 import org.biohipi.image.BioHipiImage;
 import org.biohipi.image.BioHipiImageHeader;
+import org.biohipi.image.BioHipiImageHeader.BioHipiImageFormat;
+import org.biohipi.imagebundle.BioHibIndex;
+import org.biohipi.imagebundle.BioHibInvertedIndex;
+import org.biohipi.imagebundle.BioHibInvertedIndex.MatchMode;
+import org.biohipi.imagebundle.BioHibMetaReader;
 import org.biohipi.imagebundle.BioHipiImageBundle;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.BlockLocation;
 import org.apache.hadoop.fs.FileStatus;
@@ -12,31 +19,277 @@ import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.mapreduce.JobContext;
 import org.apache.hadoop.mapreduce.TaskAttemptContext;
 import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileSplit;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.util.ReflectionUtils;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Inherits from {@link FileInputFormat} and processes multiple {@link
  * BioHipiImageBundle} (BioHIB) files as input and generates {@link
  * InputSplit} objects for a MapReduce job along with the
  * corresponding {@link RecordReader} class.
+ * <br>
+ * A meta data filter (see {@link #setMetaDataFilter}) is pushed down to the
+ * inverted index of each BioHIB that indexes the filtered key: splits then
+ * cover only the matching image records. BioHIBs without such an index are
+ * split as usual and filtered by the record reader.
+ * <br>
+ * Likewise, a storage format filter (see {@link #setImageFormats}) excludes
+ * the image records of other formats from the splits of BioHIBs with a
+ * version 2 index, and the record reader skips them without decoding them.
+ * <br>
+ * {@link #addRecordRange} and {@link #addRecords} restrict the splits to
+ * given image records of each BioHIB, resolved through its index into tight
+ * byte ranges. {@link #setSampleFraction} and {@link #setSampleCount}
+ * restrict them to a reproducible random sample of the image records.
+ * <br>
+ * By default, a BioHIB is split at the image records that end its HDFS
+ * blocks, or into <code>hipi.map.tasks</code> splits of about the same number
+ * of bytes. Setting {@link #MIN_SPLIT_SIZE}, {@link #MAX_SPLIT_SIZE} or
+ * {@link #MAX_SPLIT_RECORDS} sizes the splits by bytes and records instead
+ * (see {@link #computeRecordSplits(FileStatus, BlockLocation[], BioHibIndex, int[], long, long, int)}).
+ * Alternatively, {@link #setCostFunction} balances the splits by the
+ * estimated processing cost of their images. The locations of a split are
+ * the hosts that store most of its bytes.
+ * <br>
+ * The value of a record whose image cannot be decoded is null, see {@link
+ * BioHibRecordReader}; mappers must check it before using it.
  */
 
 public class BioHibInputFormat extends FileInputFormat<BioHipiImageHeader, BioHipiImage> {
 
+	private static final Log LOG = LogFactory.getLog(BioHibInputFormat.class);
+
+	/** Configuration property holding the meta data key of the filter. */
+	public static final String METADATA_KEY = "hipi.input.metadata.key";
+
+	/** Configuration property holding the meta data value of the filter. */
+	public static final String METADATA_VALUE = "hipi.input.metadata.value";
+
+	/** Configuration property holding the {@link MatchMode} of the filter. */
+	public static final String METADATA_MATCH = "hipi.input.metadata.match";
+
+	/** Configuration property holding the comma-separated storage formats to read. */
+	public static final String IMAGE_FORMATS = "hipi.input.formats";
+
+	/** Configuration property holding the minimum number of bytes of a split. */
+	public static final String MIN_SPLIT_SIZE = "hipi.split.minsize";
+
+	/** Configuration property holding the maximum number of bytes of a split. */
+	public static final String MAX_SPLIT_SIZE = "hipi.split.maxsize";
+
+	/** Configuration property holding the maximum number of image records of a split. */
+	public static final String MAX_SPLIT_RECORDS = "hipi.split.maxrecords";
+
+	/** Configuration property holding the class of the {@link BioHibCostFunction} of the splits. */
+	public static final String COST_FUNCTION = "hipi.split.cost.function";
+
+	/** Configuration property holding the maximum estimated cost of a split. */
+	public static final String MAX_SPLIT_COST = "hipi.split.maxcost";
+
+	/**
+	 * Balances the splits of a job by the cost of their image records
+	 * estimated from the meta data sidecar file of each BioHIB, instead of
+	 * by bytes. Splits hold records of a total cost of at most maxCost, or,
+	 * if maxCost is 0, there are as many splits per BioHIB as there are
+	 * map tasks requested with <code>hipi.map.tasks</code> or blocks in
+	 * its data file. BioHIBs without a meta data file are split by bytes.
+	 *
+	 * @param job job to configure
+	 * @param costFunction estimates the cost of each image record, e.g.
+	 * {@link BioHibVoxelCostFunction}
+	 * @param maxCost maximum cost of a split, 0 to derive it from the
+	 * number of splits
+	 */
+	public static void setCostFunction(Job job, Class<? extends BioHibCostFunction> costFunction, double maxCost) {
+		Configuration conf = job.getConfiguration();
+		conf.setClass(COST_FUNCTION, costFunction, BioHibCostFunction.class);
+		conf.setDouble(MAX_SPLIT_COST, maxCost);
+	}
+
+	/** Configuration property holding the comma-separated index ranges <code>from-to</code> of the image records to read. */
+	public static final String RECORD_RANGES = "hipi.input.ranges";
+
+	/** Configuration property holding the comma-separated indices of the image records to read. */
+	public static final String RECORD_LIST = "hipi.input.records";
+
+	/**
+	 * Adds the image records with indices from (inclusive) to to
+	 * (exclusive) to the records to read from each BioHIB. Once record
+	 * ranges or lists are set, the splits cover only these records, e.g.
+	 * to rerun a job on the records of a bundle that failed.
+	 *
+	 * @param job job to configure
+	 * @param from index of the first image record
+	 * @param to index after the last image record
+	 */
+	public static void addRecordRange(Job job, int from, int to) {
+		if (from < 0 || to < from) {
+			throw new IllegalArgumentException("Invalid record range [" + from + ", " + to + ")");
+		}
+		addToList(job.getConfiguration(), RECORD_RANGES, from + "-" + to);
+	}
+
+	/**
+	 * Adds image records to the records to read from each BioHIB, see
+	 * {@link #addRecordRange}.
+	 *
+	 * @param job job to configure
+	 * @param records indices of the image records
+	 */
+	public static void addRecords(Job job, int... records) {
+		for (int record : records) {
+			if (record < 0) {
+				throw new IllegalArgumentException("Invalid record index " + record);
+			}
+			addToList(job.getConfiguration(), RECORD_LIST, Integer.toString(record));
+		}
+	}
+
+	private static void addToList(Configuration conf, String property, String value) {
+		String list = conf.get(property);
+		conf.set(property, list == null || list.isEmpty() ? value : list + "," + value);
+	}
+
+	/** Configuration property holding the fraction of the image records of each BioHIB to sample. */
+	public static final String SAMPLE_FRACTION = "hipi.input.sample.fraction";
+
+	/** Configuration property holding the number of image records of each BioHIB to sample. */
+	public static final String SAMPLE_COUNT = "hipi.input.sample.count";
+
+	/** Configuration property holding the seed of the random sample. */
+	public static final String SAMPLE_SEED = "hipi.input.sample.seed";
+
+	/**
+	 * Restricts the input of a job to a uniform random sample of the image
+	 * records of each BioHIB. The splits cover only the sampled records,
+	 * so reading a sample of 1% of the records reads about 1% of the
+	 * data. The same seed selects the same sample of an unchanged BioHIB.
+	 *
+	 * @param job job to configure
+	 * @param fraction fraction of the image records to sample, between 0
+	 * and 1
+	 * @param seed seed of the random sample
+	 */
+	public static void setSampleFraction(Job job, double fraction, long seed) {
+		if (fraction < 0 || fraction > 1) {
+			throw new IllegalArgumentException("Sample fraction must be between 0 and 1: " + fraction);
+		}
+		Configuration conf = job.getConfiguration();
+		conf.setDouble(SAMPLE_FRACTION, fraction);
+		conf.setLong(SAMPLE_SEED, seed);
+	}
+
+	/**
+	 * Restricts the input of a job to a uniform random sample of at most
+	 * count image records of each BioHIB, see {@link #setSampleFraction}.
+	 *
+	 * @param job job to configure
+	 * @param count number of image records to sample per BioHIB
+	 * @param seed seed of the random sample
+	 */
+	public static void setSampleCount(Job job, int count, long seed) {
+		if (count < 0) {
+			throw new IllegalArgumentException("Sample count must not be negative: " + count);
+		}
+		Configuration conf = job.getConfiguration();
+		conf.setInt(SAMPLE_COUNT, count);
+		conf.setLong(SAMPLE_SEED, seed);
+	}
+
+	/**
+	 * Configuration properties that affect the splits of a BioHIB, part of
+	 * the key of the split plans cached by {@link BioHibSplitCache}.
+	 */
+	static final String[] SPLIT_PROPERTIES = {
+		"hipi.map.tasks", METADATA_KEY, METADATA_VALUE, METADATA_MATCH, IMAGE_FORMATS,
+		MIN_SPLIT_SIZE, MAX_SPLIT_SIZE, MAX_SPLIT_RECORDS, COST_FUNCTION, MAX_SPLIT_COST,
+		SAMPLE_FRACTION, SAMPLE_COUNT, SAMPLE_SEED, RECORD_RANGES, RECORD_LIST
+	};
+
+	/**
+	 * Restricts the input of a job to the image records stored in one of
+	 * the given formats.
+	 *
+	 * @param job job to configure
+	 * @param formats storage formats of the images to read
+	 */
+	public static void setImageFormats(Job job, BioHipiImageFormat... formats) {
+		String[] names = new String[formats.length];
+		for (int i = 0; i < formats.length; i++) {
+			names[i] = formats[i].name();
+		}
+		job.getConfiguration().setStrings(IMAGE_FORMATS, names);
+	}
+
 	/**
-	 * Creates a {@link BioHibRecordReader}
+	 * @param conf job configuration
+	 * @return Storage formats of the images to read, or null if all
+	 * formats are read
+	 */
+	public static Set<BioHipiImageFormat> getImageFormats(Configuration conf) {
+		String[] names = conf.getTrimmedStrings(IMAGE_FORMATS);
+		if (names.length == 0) {
+			return null;
+		}
+		Set<BioHipiImageFormat> formats = new HashSet<BioHipiImageFormat>();
+		for (String name : names) {
+			formats.add(BioHipiImageFormat.valueOf(name.toUpperCase()));
+		}
+		return formats;
+	}
+
+	/**
+	 * Restricts the input of a job to the image records whose meta data
+	 * value for a key matches a value.
+	 *
+	 * @param job job to configure
+	 * @param key meta data key, e.g. {@link
+	 * org.biohipi.image.BioHipiImageHeader.BioHipiKeyMetaData#PATIENT_ID}
+	 * @param value value to match
+	 * @param match how values are matched
+	 */
+	public static void setMetaDataFilter(Job job, String key, String value, MatchMode match) {
+		Configuration conf = job.getConfiguration();
+		conf.set(METADATA_KEY, key);
+		conf.set(METADATA_VALUE, value);
+		conf.set(METADATA_MATCH, match.name());
+	}
+
+	/**
+	 * Creates a {@link BioHibRecordReader}, or a {@link
+	 * BioHibParallelRecordReader} if <code>hipi.reader.decode.threads</code>
+	 * is set to more than one thread.
 	 */
 	@Override
 	public RecordReader<BioHipiImageHeader, BioHipiImage> createRecordReader(InputSplit split, TaskAttemptContext context) 
 			throws IOException, InterruptedException {
+		if (context.getConfiguration().getInt("hipi.reader.decode.threads", 1) > 1) {
+			return new BioHibParallelRecordReader();
+		}
 		return new BioHibRecordReader();
 	}
 
@@ -66,99 +319,579 @@ public class BioHibInputFormat extends FileInputFormat<BioHipiImageHeader, BioHi
 	 * of BioHIB files. This is static to allow code reuse: one can imagine many different extensions of
 	 * ImageBundleInputFormat that produce different record types (FloatImage,
 	 * DicomImage, etc.).
+	 * <br>
+	 * The BioHIB files are split in parallel by up to <code>hipi.split.threads</code> threads
+	 * (default 8), and if <code>hipi.split.cache</code> is true the splits of each BioHIB are cached by
+	 * {@link BioHibSplitCache}. The splits are returned in the order of the input files.
 	 */
 	static public List<InputSplit> computeSplits(JobContext job, List<FileStatus> inputFiles)
 			throws IOException {
+		return computeForFiles(job.getConfiguration(), inputFiles, new FileComputation<InputSplit>() {
+				@Override
+				public List<InputSplit> compute(Configuration conf, FileStatus file) throws IOException {
+					return computeCachedSplits(conf, file);
+				}
+			});
+	}
 
-		// Read number of requested map tasks from job configuration
-		Configuration conf = job.getConfiguration();
+	/**
+	 * Computation of a list of results (splits, ...) for one input BioHIB,
+	 * see {@link BioHibInputFormat#computeForFiles}.
+	 */
+	interface FileComputation<T> {
+		List<T> compute(Configuration conf, FileStatus file) throws IOException;
+	}
+
+	/**
+	 * Runs a computation for each input BioHIB on up to
+	 * <code>hipi.split.threads</code> threads (default 8).
+	 *
+	 * @return the concatenated results, in the order of the input files
+	 */
+	static <T> List<T> computeForFiles(final Configuration conf, List<FileStatus> inputFiles, final FileComputation<T> computation)
+			throws IOException {
+
+		int numThreads = Math.min(conf.getInt("hipi.split.threads", 8), inputFiles.size());
+
+		List<T> results = new ArrayList<T>();
+
+		if (numThreads <= 1) {
+			for (FileStatus file : inputFiles) {
+				results.addAll(computation.compute(conf, file));
+			}
+			return results;
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "BioHibInputFormat split computation");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		try {
+			List<Future<List<T>>> fileResults = new ArrayList<Future<List<T>>>();
+			for (final FileStatus file : inputFiles) {
+				fileResults.add(executor.submit(new Callable<List<T>>() {
+						@Override
+						public List<T> call() throws IOException {
+							return computation.compute(conf, file);
+						}
+					}));
+			}
+			for (Future<List<T>> future : fileResults) {
+				results.addAll(future.get());
+			}
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Failed to compute BioHIB splits", e.getCause());
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while computing BioHIB splits");
+		} finally {
+			executor.shutdownNow();
+		}
+
+		return results;
+	}
+
+	/**
+	 * Returns the splits of one BioHIB file from {@link BioHibSplitCache},
+	 * computing and caching them if necessary.
+	 */
+	static private List<InputSplit> computeCachedSplits(Configuration conf, FileStatus file) throws IOException {
+		List<InputSplit> splits = BioHibSplitCache.get(conf, file);
+		if (splits == null) {
+			splits = computeFileSplits(conf, file);
+			BioHibSplitCache.put(conf, file, splits);
+		}
+		return splits;
+	}
+
+	/**
+	 * Computes the InputSplits of one BioHIB file.
+	 */
+	static private List<InputSplit> computeFileSplits(Configuration conf, FileStatus file) throws IOException {
+
+		// Read number of requested map tasks and split sizes from job
+		// configuration
 		int numMapTasks = conf.getInt("hipi.map.tasks", 0);
+		long minSize = conf.getLong(MIN_SPLIT_SIZE, 1);
+		long maxSize = conf.getLong(MAX_SPLIT_SIZE, Long.MAX_VALUE);
+		int maxRecords = conf.getInt(MAX_SPLIT_RECORDS, Integer.MAX_VALUE);
+		boolean sized = conf.get(MIN_SPLIT_SIZE) != null || conf.get(MAX_SPLIT_SIZE) != null || conf.get(MAX_SPLIT_RECORDS) != null;
 
 		// Initialize list of InputSplits
 		List<InputSplit> splits = new ArrayList<InputSplit>();
 
-		// Iterate over head input HIB
-		for (FileStatus file : inputFiles) {
-
-			// Get path to file and file system object on HDFS
-			Path path = file.getPath();
-			FileSystem fs = path.getFileSystem(conf);
-
-			// Create HIB object for reading (pasing null as the image
-			// factory disallows calling any of the image reading methods)
-			BioHipiImageBundle hib = new BioHipiImageBundle(path, conf);
-			hib.openForRead();
-
-			// Get image block offsets (should be in ascending order)
-			List<Long> offsets = hib.readAllOffsets();
-			BlockLocation[] blkLocations = fs.getFileBlockLocations(hib.getDataFileStatus(), 0, offsets.get(offsets.size() - 1));
-
-			if (numMapTasks == 0) {
-				// Determine number of map tasks automatically
-				int i = 0, b = 0;
-				long lastOffset = 0, currentOffset = 0;
-				for (; (b < blkLocations.length) && (i < offsets.size()); b++) {
-					long next = blkLocations[b].getOffset() + blkLocations[b].getLength();
-					while (currentOffset < next && i < offsets.size()) {
-						currentOffset = offsets.get(i);
-						i++;
-					}
-					String[] hosts = null;
-					if (currentOffset > next) {
-						Set<String> hostSet = new HashSet<String>();
-						int endIndex = staticGetBlockIndex(blkLocations, currentOffset - 1);
-						for (int j = b; j < endIndex; j++) {
-							String[] blkHosts = blkLocations[j].getHosts();
-							for (int k = 0; k < blkHosts.length; k++)
-								hostSet.add(blkHosts[k]);
+		// Get path to file and file system object on HDFS
+		Path path = file.getPath();
+		FileSystem fs = path.getFileSystem(conf);
+
+		// Create HIB object for reading (pasing null as the image
+		// factory disallows calling any of the image reading methods)
+		BioHipiImageBundle hib = new BioHipiImageBundle(path, conf);
+		hib.openForRead();
+
+		// Get image block offsets (should be in ascending order)
+		BioHibIndex index = hib.readIndex();
+		if (index.size() == 0) {
+			hib.close();
+			return splits;
+		}
+		FileStatus dataFile = hib.getDataFileStatus();
+		BlockLocation[] blkLocations = fs.getFileBlockLocations(dataFile, 0, index.getDataLength());
+
+		// Push meta data filter down to the inverted index and storage
+		// format filter down to the index
+		int[] records = lookupRecords(conf, hib);
+		records = selectRecords(conf, index, records);
+		records = filterFormats(conf, index, records);
+		records = sampleRecords(conf, index, records, path);
+		boolean subset = records != null && records.length < index.size();
+
+		// Balance splits by estimated cost. Without a maximum cost per split,
+		// make as many splits as map tasks were requested or as the data
+		// file has blocks.
+		Class<? extends BioHibCostFunction> costFunctionClass = conf.getClass(COST_FUNCTION, null, BioHibCostFunction.class);
+		if (costFunctionClass != null) {
+			double[] costs = computeCosts(hib, index, ReflectionUtils.newInstance(costFunctionClass, conf));
+			if (costs != null) {
+				double maxCost = conf.getDouble(MAX_SPLIT_COST, 0);
+				if (maxCost <= 0) {
+					double totalCost = 0;
+					for (int i = 0; i < costs.length; i++) {
+						if (!subset || Arrays.binarySearch(records, i) >= 0) {
+							totalCost += costs[i];
 						}
-						hosts = (String[]) hostSet.toArray(new String[hostSet.size()]);
-					} else { // currentOffset == next
-						hosts = blkLocations[b].getHosts();
 					}
-					splits.add(new FileSplit(hib.getDataFileStatus().getPath(), lastOffset, currentOffset - lastOffset, hosts));
-					lastOffset = currentOffset;
+					maxCost = totalCost / (numMapTasks > 0 ? numMapTasks : blkLocations.length);
 				}
-				System.out.println("Spawned " + b + " map tasks");
-			} else {
-				// User specified number of map tasks
-				int imageRemaining = offsets.size();
-				int i = 0, taskRemaining = numMapTasks;
-				long lastOffset = 0, currentOffset;
-				while (imageRemaining > 0) {
-					int numImages = imageRemaining / taskRemaining;
-					if (imageRemaining % taskRemaining > 0)
-						numImages++;
-
-					int next = Math.min(offsets.size() - i, numImages) - 1;
-					int startIndex = staticGetBlockIndex(blkLocations, lastOffset);
-					currentOffset = offsets.get(i + next);
-					int endIndex = staticGetBlockIndex(blkLocations, currentOffset - 1);
-
-					ArrayList<String> hosts = new ArrayList<String>();
-
-					// Check getBlockIndex, and getBlockSize
-					for (int j = startIndex; j <= endIndex; j++) {
-						String[] blkHosts = blkLocations[j].getHosts();
-						for (int k = 0; k < blkHosts.length; k++)
-							hosts.add(blkHosts[k]);
-					}
-					splits.add(new FileSplit(hib.getDataFileStatus().getPath(), lastOffset, currentOffset - lastOffset, hosts.toArray(new String[hosts.size()])));
-					lastOffset = currentOffset;
-					i += next + 1;
+				splits.addAll(computeCostSplits(dataFile, blkLocations, index, subset ? records : null, costs, maxCost, maxRecords));
+				hib.close();
+				return splits;
+			}
+		}
+
+		if (subset || sized) {
+			// Splits sized like those of FileInputFormat, but cut at record
+			// boundaries
+			long splitSize = Math.max(minSize, Math.min(maxSize, dataFile.getBlockSize()));
+			splits.addAll(computeRecordSplits(dataFile, blkLocations, index, subset ? records : null, splitSize, minSize, maxRecords));
+			hib.close();
+			return splits;
+		}
+
+		if (numMapTasks == 0) {
+			// Determine number of map tasks automatically
+			int i = 0, b = 0;
+			long lastOffset = 0, currentOffset = 0;
+			for (; (b < blkLocations.length) && (i < index.size()); b++) {
+				long next = blkLocations[b].getOffset() + blkLocations[b].getLength();
+				if (currentOffset >= next) {
+					// Block already covered by an image spanning several blocks
+					continue;
+				}
+				// Find the image containing the last byte of the block
+				int last = index.findImageIndex(next - 1);
+				if (last < 0) {
+					last = index.size() - 1;
+				}
+				currentOffset = index.getEndOffset(last);
+				i = last + 1;
+				String[] hosts = getSplitHosts(blkLocations, lastOffset, currentOffset, null);
+				splits.add(new FileSplit(dataFile.getPath(), lastOffset, currentOffset - lastOffset, hosts));
+				lastOffset = currentOffset;
+			}
+		} else {
+			// User specified number of map tasks, balanced by bytes: each
+			// split takes its share of the remaining bytes, leaving at
+			// least one image to each of the remaining tasks
+			int i = 0, taskRemaining = numMapTasks;
+			long lastOffset = 0, currentOffset;
+			while (i < index.size()) {
+				long share = (index.getDataLength() - lastOffset) / taskRemaining;
+				int last = i;
+				while (last + 1 < index.size() - (taskRemaining - 1) && index.getEndOffset(last) - lastOffset < share) {
+					last++;
+				}
+				currentOffset = index.getEndOffset(last);
+				String[] hosts = getSplitHosts(blkLocations, lastOffset, currentOffset, null);
+				splits.add(new FileSplit(dataFile.getPath(), lastOffset, currentOffset - lastOffset, hosts));
+				lastOffset = currentOffset;
+				i = last + 1;
+				if (taskRemaining > 1) {
 					taskRemaining--;
-					imageRemaining -= numImages;
-					System.out.println("imageRemaining: " + imageRemaining + "\ttaskRemaining: " + taskRemaining + "\tlastOffset: " + lastOffset + "\ti: " + i);
 				}
 			}
+		}
+		LOG.debug("Split BioHIB [" + hib.getPath().getName() + "] into " + splits.size() + " splits");
 
-			hib.close();
+		hib.close();
+
+		return splits;
+	}
+
+	/**
+	 * Adds the number of bytes of [start, end) stored on each host to
+	 * hostBytes and returns the hosts that store the most bytes, as many
+	 * as the largest number of replicas of a block in the range.
+	 *
+	 * @param hostBytes bytes per host of previous ranges of the same
+	 * split, or null for a single range
+	 * @return hosts ordered by decreasing number of bytes
+	 */
+	static String[] getSplitHosts(BlockLocation[] blkLocations, long start, long end, Map<String, Long> hostBytes)
+			throws IOException {
+		if (hostBytes == null) {
+			hostBytes = new HashMap<String, Long>();
+		}
+		int replicas = 0;
+		int endIndex = staticGetBlockIndex(blkLocations, end - 1);
+		for (int b = staticGetBlockIndex(blkLocations, start); b <= endIndex; b++) {
+			long blockStart = blkLocations[b].getOffset();
+			long blockEnd = blockStart + blkLocations[b].getLength();
+			long bytes = Math.min(end, blockEnd) - Math.max(start, blockStart);
+			String[] blkHosts = blkLocations[b].getHosts();
+			replicas = Math.max(replicas, blkHosts.length);
+			for (String host : blkHosts) {
+				Long total = hostBytes.get(host);
+				hostBytes.put(host, total == null ? bytes : total + bytes);
+			}
+		}
+		return rankHosts(hostBytes, replicas);
+	}
+
+	/**
+	 * @return at most count hosts, ordered by decreasing number of bytes
+	 */
+	static String[] rankHosts(final Map<String, Long> hostBytes, int count) {
+		List<String> hosts = new ArrayList<String>(hostBytes.keySet());
+		Collections.sort(hosts, new Comparator<String>() {
+				@Override
+				public int compare(String a, String b) {
+					return Long.compare(hostBytes.get(b), hostBytes.get(a));
+				}
+			});
+		return hosts.subList(0, Math.min(count, hosts.size())).toArray(new String[0]);
+	}
+
+	/**
+	 * Looks up the image records of a BioHIB matching the meta data filter
+	 * of the job in its inverted index.
+	 *
+	 * @return ascending indices of the matching image records, or null if
+	 * no filter is configured or the BioHIB has no inverted index over the
+	 * filtered key
+	 */
+	static int[] lookupRecords(Configuration conf, BioHipiImageBundle hib) throws IOException {
+		String key = conf.get(METADATA_KEY);
+		String value = conf.get(METADATA_VALUE);
+		if (key == null || value == null) {
+			return null;
+		}
+		if (hib.hasInvertedIndex()) {
+			BioHibInvertedIndex invertedIndex = hib.readInvertedIndex(key);
+			if (invertedIndex.containsKey(key)) {
+				return invertedIndex.lookup(key, value, MatchMode.valueOf(conf.get(METADATA_MATCH, MatchMode.EXACT.name())));
+			}
+		}
+		System.err.println("BioHIB [" + hib.getPath().getName() + "] has no inverted index over [" + key + "], reading all images.");
+		return null;
+	}
+
+	/**
+	 * Removes the image records that are not stored in one of the storage
+	 * formats of the job from a list of records.
+	 *
+	 * @param records ascending indices of image records, null for all
+	 * image records of the index
+	 * @return ascending indices of the remaining image records, or records
+	 * itself if no format filter is configured or the index holds no
+	 * storage formats (version 1)
+	 */
+	static int[] filterFormats(Configuration conf, BioHibIndex index, int[] records) {
+		Set<BioHipiImageFormat> formats = getImageFormats(conf);
+		if (formats == null || !index.hasRecordInfo()) {
+			return records;
+		}
+		int count = records == null ? index.size() : records.length;
+		int[] filtered = new int[count];
+		int n = 0;
+		for (int i = 0; i < count; i++) {
+			int record = records == null ? i : records[i];
+			if (formats.contains(index.getImageFormat(record))) {
+				filtered[n++] = record;
+			}
+		}
+		return Arrays.copyOf(filtered, n);
+	}
+
+	/**
+	 * Removes the image records that are not in one of the record ranges
+	 * or the record list of the job from a list of records. Indices past
+	 * the last image record of the index are ignored.
+	 *
+	 * @param records ascending indices of image records, null for all
+	 * image records of the index
+	 * @return ascending indices of the remaining image records, or records
+	 * itself if no record ranges or list are configured
+	 */
+	static int[] selectRecords(Configuration conf, BioHibIndex index, int[] records) {
+		String[] ranges = conf.getTrimmedStrings(RECORD_RANGES);
+		String[] list = conf.getTrimmedStrings(RECORD_LIST);
+		if (ranges.length == 0 && list.length == 0) {
+			return records;
+		}
+		BitSet selected = new BitSet(index.size());
+		for (String range : ranges) {
+			int dash = range.indexOf('-');
+			if (dash <= 0) {
+				throw new IllegalArgumentException("Invalid record range [" + range + "], expected from-to");
+			}
+			int from = Integer.parseInt(range.substring(0, dash).trim());
+			int to = Math.min(Integer.parseInt(range.substring(dash + 1).trim()), index.size());
+			if (from < to) {
+				selected.set(from, to);
+			}
+		}
+		for (String record : list) {
+			int i = Integer.parseInt(record);
+			if (i < index.size()) {
+				selected.set(i);
+			}
+		}
+
+		int count = records == null ? index.size() : records.length;
+		int[] filtered = new int[Math.min(count, selected.cardinality())];
+		int n = 0;
+		for (int i = 0; i < count && n < filtered.length; i++) {
+			int record = records == null ? i : records[i];
+			if (selected.get(record)) {
+				filtered[n++] = record;
+			}
+		}
+		return Arrays.copyOf(filtered, n);
+	}
+
+	/**
+	 * Draws a uniform random sample of a list of records if sampling is
+	 * configured, using selection sampling so that the sampled records
+	 * stay in ascending order. The random generator is seeded with the
+	 * seed of the job and the path of the BioHIB, so each BioHIB gets its
+	 * own, reproducible sample.
+	 *
+	 * @param records ascending indices of image records, null for all
+	 * image records of the index
+	 * @return ascending indices of the sampled image records, or records
+	 * itself if no sampling is configured
+	 */
+	static int[] sampleRecords(Configuration conf, BioHibIndex index, int[] records, Path path) {
+		String fraction = conf.get(SAMPLE_FRACTION);
+		String count = conf.get(SAMPLE_COUNT);
+		if (fraction == null && count == null) {
+			return records;
+		}
+		int total = records == null ? index.size() : records.length;
+		int sampleSize = total;
+		if (fraction != null) {
+			sampleSize = (int)Math.round(total * Math.max(0, Math.min(1, conf.getDouble(SAMPLE_FRACTION, 1))));
+		}
+		if (count != null) {
+			sampleSize = Math.min(sampleSize, Math.max(0, conf.getInt(SAMPLE_COUNT, total)));
+		}
 
-		} // for (FileStatus file : inputFiles)
+		Random random = new Random(conf.getLong(SAMPLE_SEED, 0) ^ path.toString().hashCode());
+		int[] sampled = new int[sampleSize];
+		int n = 0;
+		for (int i = 0; i < total && n < sampleSize; i++) {
+			// Select with probability (records still needed) / (records left)
+			if (random.nextInt(total - i) < sampleSize - n) {
+				sampled[n++] = records == null ? i : records[i];
+			}
+		}
+		return sampled;
+	}
+
+	/**
+	 * Computes InputSplits covering a subset of the image records of a
+	 * BioHIB. Runs of consecutive records form contiguous byte ranges, and
+	 * ranges are grouped in order into splits of up to maxSplitSize bytes.
+	 * Splits with several ranges are {@link CombineFileSplit}s, which
+	 * {@link BioHibRecordReader} reads range by range.
+	 *
+	 * @param dataFile data file of the BioHIB
+	 * @param blkLocations block locations of the data file
+	 * @param index index of the BioHIB
+	 * @param records ascending indices of the image records to cover
+	 * @param maxSplitSize number of bytes after which a split is closed
+	 * @return list of InputSplits, empty if records is empty
+	 *
+	 * @throws IOException if the hosts of a block cannot be determined
+	 */
+	static public List<InputSplit> computeRecordSplits(FileStatus dataFile, BlockLocation[] blkLocations, BioHibIndex index, int[] records, long maxSplitSize)
+			throws IOException {
+		return computeRecordSplits(dataFile, blkLocations, index, records, maxSplitSize, 0, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Computes InputSplits covering the image records of a BioHIB, balanced
+	 * by bytes. Records are added to a split in order until the next one
+	 * would take it over maxSplitSize bytes (once it holds at least
+	 * minSplitSize bytes) or it holds maxRecords records. A record larger
+	 * than maxSplitSize forms a split of its own. Runs of consecutive
+	 * records form contiguous byte ranges; splits with several ranges are
+	 * {@link CombineFileSplit}s, which {@link BioHibRecordReader} reads
+	 * range by range. The hosts of a split are those that store most of
+	 * its bytes.
+	 *
+	 * @param dataFile data file of the BioHIB
+	 * @param blkLocations block locations of the data file
+	 * @param index index of the BioHIB
+	 * @param records ascending indices of the image records to cover, or
+	 * null for all records
+	 * @param maxSplitSize maximum number of bytes of a split
+	 * @param minSplitSize minimum number of bytes of a split, except for
+	 * the last one
+	 * @param maxRecords maximum number of records of a split
+	 * @return list of InputSplits, empty if records is empty
+	 *
+	 * @throws IOException if the hosts of a block cannot be determined
+	 */
+	static public List<InputSplit> computeRecordSplits(FileStatus dataFile, BlockLocation[] blkLocations, BioHibIndex index, int[] records,
+			long maxSplitSize, long minSplitSize, int maxRecords) throws IOException {
+		return computeWeightedSplits(dataFile, blkLocations, index, records, null, maxSplitSize, minSplitSize, maxRecords);
+	}
+
+	/**
+	 * Computes InputSplits covering the image records of a BioHIB, balanced
+	 * by the estimated cost of the records instead of their bytes, see
+	 * {@link #computeRecordSplits(FileStatus, BlockLocation[], BioHibIndex, int[], long, long, int)}.
+	 *
+	 * @param costs cost of each image record of the index
+	 * @param maxSplitCost maximum cost of a split
+	 * @param maxRecords maximum number of records of a split
+	 */
+	static public List<InputSplit> computeCostSplits(FileStatus dataFile, BlockLocation[] blkLocations, BioHibIndex index, int[] records,
+			double[] costs, double maxSplitCost, int maxRecords) throws IOException {
+		return computeWeightedSplits(dataFile, blkLocations, index, records, costs, maxSplitCost, 0, maxRecords);
+	}
+
+	/**
+	 * Groups image records into splits by weight: the byte length of the
+	 * records if weights is null, their weights otherwise.
+	 */
+	static private List<InputSplit> computeWeightedSplits(FileStatus dataFile, BlockLocation[] blkLocations, BioHibIndex index, int[] records,
+			double[] weights, double maxSplitWeight, double minSplitWeight, int maxRecords) throws IOException {
+
+		List<InputSplit> splits = new ArrayList<InputSplit>();
+		List<Long> starts = new ArrayList<Long>();
+		List<Long> lengths = new ArrayList<Long>();
+		Map<String, Long> hostBytes = new HashMap<String, Long>();
+		String[] hosts = null;
+		double splitWeight = 0;
+		int splitRecords = 0;
+		int count = records == null ? index.size() : records.length;
+
+		int i = 0;
+		while (i < count) {
+			// Extend run of consecutive records up to the split limits
+			int first = records == null ? i : records[i];
+			long start = index.getStartOffset(first);
+			int last = first;
+			splitWeight += getWeight(index, weights, first);
+			splitRecords++;
+			i++;
+			while (i < count && splitRecords < maxRecords) {
+				int next = records == null ? i : records[i];
+				double weight = getWeight(index, weights, next);
+				if (next != last + 1 || !fitsSplit(splitWeight + weight, splitWeight, maxSplitWeight, minSplitWeight)) {
+					break;
+				}
+				last = next;
+				splitWeight += weight;
+				splitRecords++;
+				i++;
+			}
+			long end = index.getEndOffset(last);
+			starts.add(start);
+			lengths.add(end - start);
+			hosts = getSplitHosts(blkLocations, start, end, hostBytes);
+
+			boolean full = i == count || splitRecords >= maxRecords;
+			if (!full) {
+				int next = records == null ? i : records[i];
+				full = !fitsSplit(splitWeight + getWeight(index, weights, next), splitWeight, maxSplitWeight, minSplitWeight);
+			}
+			if (full) {
+				if (starts.size() == 1) {
+					splits.add(new FileSplit(dataFile.getPath(), starts.get(0), lengths.get(0), hosts));
+				} else {
+					Path[] paths = new Path[starts.size()];
+					long[] startOffsets = new long[starts.size()];
+					long[] rangeLengths = new long[starts.size()];
+					for (int r = 0; r < paths.length; r++) {
+						paths[r] = dataFile.getPath();
+						startOffsets[r] = starts.get(r);
+						rangeLengths[r] = lengths.get(r);
+					}
+					splits.add(new CombineFileSplit(paths, startOffsets, rangeLengths, hosts));
+				}
+				starts.clear();
+				lengths.clear();
+				hostBytes.clear();
+				splitWeight = 0;
+				splitRecords = 0;
+			}
+		}
 
 		return splits;
 	}
 
+	static private double getWeight(BioHibIndex index, double[] weights, int record) {
+		return weights == null ? index.getLength(record) : weights[record];
+	}
+
+	/**
+	 * @return true if a split of weight currentWeight may grow to
+	 * newWeight
+	 */
+	static private boolean fitsSplit(double newWeight, double currentWeight, double maxSplitWeight, double minSplitWeight) {
+		return newWeight <= maxSplitWeight || currentWeight < minSplitWeight;
+	}
+
+	/**
+	 * Estimates the cost of each image record of a BioHIB from the headers
+	 * in its meta data sidecar file.
+	 *
+	 * @return cost of each record, or null if the BioHIB has no complete
+	 * meta data file
+	 */
+	static private double[] computeCosts(BioHipiImageBundle hib, BioHibIndex index, BioHibCostFunction costFunction) throws IOException {
+		if (!hib.hasMetaFile()) {
+			System.err.println("BioHIB [" + hib.getPath().getName() + "] has no meta data file, splitting by bytes.");
+			return null;
+		}
+		double[] costs = new double[index.size()];
+		BioHibMetaReader reader = hib.openMetaReader();
+		try {
+			int i = 0;
+			while (i < costs.length && reader.nextHeader()) {
+				costs[i] = costFunction.getCost(reader.getCurrentKey(), index.getLength(i));
+				i++;
+			}
+			if (i < costs.length) {
+				System.err.println("BioHIB [" + hib.getPath().getName() + "] has an incomplete meta data file, splitting by bytes.");
+				return null;
+			}
+		} finally {
+			reader.close();
+		}
+		return costs;
+	}
+
 	/**
 	 * Partitions input BioHIB files to map tasks in a way that attempts to maximize compute and data
 	 * co-locality. To this end, {@link InputSplit}s are created such that one map task is created
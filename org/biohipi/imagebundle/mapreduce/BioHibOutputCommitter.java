@@ -0,0 +1,96 @@
+package org.biohipi.imagebundle.mapreduce;
+
+import org.biohipi.imagebundle.BioHipiImageBundle;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputCommitter;
+import org.apache.hadoop.mapreduce.task.JobContextImpl;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * {@link FileOutputCommitter} of {@link BioHibOutputFormat}. Task outputs are committed as usual,
+ * one BioHIB part per task. If <code>hipi.output.merge</code> is true, committing the job then
+ * moves the parts in the order of their names into a single BioHIB named by
+ * <code>hipi.output.merge.name</code> (default <code>bundle.hib</code>) in the output directory with
+ * {@link BioHipiImageBundle#concat}, so on HDFS the image data of the parts is not copied. The
+ * merged BioHIB holds the images, meta data and inverted index of all parts; if a part cannot be
+ * moved, the remaining parts are kept and the job fails. The <code>_SUCCESS</code> marker is then
+ * written only once the merge has succeeded.
+ */
+public class BioHibOutputCommitter extends FileOutputCommitter {
+
+	private static final Log LOG = LogFactory.getLog(BioHibOutputCommitter.class);
+
+	private final Path outputPath;
+
+	public BioHibOutputCommitter(Path outputPath, TaskAttemptContext context) throws IOException {
+		super(outputPath, context);
+		this.outputPath = outputPath;
+	}
+
+	@Override
+	public void commitJob(JobContext context) throws IOException {
+		Configuration conf = context.getConfiguration();
+		if (outputPath == null || !conf.getBoolean(BioHibOutputFormat.MERGE, false)) {
+			super.commitJob(context);
+			return;
+		}
+
+		// The parts reach the output directory in super.commitJob, so the
+		// marker is held back until they are merged
+		Configuration commitConf = new Configuration(conf);
+		commitConf.setBoolean(SUCCESSFUL_JOB_OUTPUT_DIR_MARKER, false);
+		super.commitJob(new JobContextImpl(commitConf, context.getJobID()));
+		mergeParts(conf, outputPath, new Path(outputPath, conf.get(BioHibOutputFormat.MERGE_NAME, "bundle.hib")));
+		if (conf.getBoolean(SUCCESSFUL_JOB_OUTPUT_DIR_MARKER, true)) {
+			outputPath.getFileSystem(conf).create(new Path(outputPath, SUCCEEDED_FILE_NAME)).close();
+		}
+	}
+
+	/**
+	 * Moves the BioHIB parts of a directory into a new BioHIB with {@link
+	 * BioHipiImageBundle#concat}, which deletes each part (index, data, meta
+	 * data and inverted index files) once its images have been moved. If a
+	 * part cannot be moved, it and the parts after it are kept.
+	 *
+	 * @param conf configuration of the file system
+	 * @param dir directory holding the parts, named <code>part-*.hib</code>
+	 * @param mergedPath path of the index file of the merged BioHIB
+	 *
+	 * @throws IOException if the parts cannot be listed or moved, or the
+	 * merged BioHIB cannot be written
+	 */
+	public static void mergeParts(Configuration conf, Path dir, Path mergedPath) throws IOException {
+		FileSystem fs = dir.getFileSystem(conf);
+		FileStatus[] parts = fs.listStatus(dir, new PathFilter() {
+				@Override
+				public boolean accept(Path path) {
+					return path.getName().startsWith("part-") && path.getName().endsWith(".hib");
+				}
+			});
+		Arrays.sort(parts);
+
+		BioHipiImageBundle[] bundles = new BioHipiImageBundle[parts.length];
+		for (int i = 0; i < parts.length; i++) {
+			bundles[i] = new BioHipiImageBundle(parts[i].getPath(), conf);
+		}
+		BioHipiImageBundle merged = new BioHipiImageBundle(mergedPath, conf);
+		merged.openForWrite(false);
+		try {
+			merged.concat(bundles);
+		} finally {
+			merged.close();
+		}
+		LOG.info("Merged " + parts.length + " BioHIB parts into [" + mergedPath + "]");
+	}
+}
@@ -0,0 +1,141 @@
+package org.biohipi.imagebundle.mapreduce;
+
+import org.biohipi.image.BioHipiImage;
+import org.biohipi.image.BioHipiImageHeader;
+import org.biohipi.image.BioHipiImageHeader.BioHipiImageFormat;
+import org.biohipi.image.io.CodecManager;
+import org.biohipi.image.io.ImageEncoder;
+import org.biohipi.imagebundle.BioHibCompression;
+import org.biohipi.imagebundle.BioHipiImageBundle;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.OutputCommitter;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Inherits from {@link FileOutputFormat} and writes the (BioHipiImageHeader, BioHipiImage) pairs
+ * emitted by a MapReduce job into BioHIB files. Each task writes one BioHIB part named after the
+ * task, e.g. <code>part-r-00000.hib</code> with its <code>.dat</code> and <code>.meta</code>
+ * files (and <code>.inv</code> file if <code>hipi.bundle.index.keys</code> is set). Each image is
+ * encoded with the {@link org.biohipi.image.io.ImageEncoder} of the storage format of its header,
+ * found with {@link CodecManager}, and its data is compressed with the {@link BioHibCompression}
+ * held by <code>hipi.output.compression</code> (default NONE).
+ * <br>
+ * Setting <code>hipi.output.merge</code> to true (see {@link #setMergeOutput}) makes the
+ * {@link BioHibOutputCommitter} merge the parts into a single BioHIB once the job has committed.
+ */
+public class BioHibOutputFormat extends FileOutputFormat<BioHipiImageHeader, BioHipiImage> {
+
+	/** Configuration property holding the {@link BioHibCompression} of the image data. */
+	public static final String COMPRESSION = "hipi.output.compression";
+
+	/** Configuration property holding whether the parts are merged into one BioHIB. */
+	public static final String MERGE = "hipi.output.merge";
+
+	/** Configuration property holding the file name of the merged BioHIB. */
+	public static final String MERGE_NAME = "hipi.output.merge.name";
+
+	private BioHibOutputCommitter committer = null;
+
+	/**
+	 * Writes image records to an open BioHIB, encoding each image in the
+	 * storage format of its header.
+	 */
+	public static class BioHibRecordWriter extends RecordWriter<BioHipiImageHeader, BioHipiImage> {
+
+		private final BioHipiImageBundle hib;
+		private final ImageBuffer imageStream = new ImageBuffer(1024 * 1024);
+
+		public BioHibRecordWriter(BioHipiImageBundle hib) {
+			this.hib = hib;
+		}
+
+		@Override
+		public void write(BioHipiImageHeader header, BioHipiImage image) throws IOException {
+			BioHipiImageFormat format = header.getStorageFormat();
+			ImageEncoder encoder = null;
+			try {
+				encoder = format == null ? null : CodecManager.getEncoder(format);
+			} catch (IllegalArgumentException e) {
+				// Reported below
+			}
+			if (encoder == null) {
+				throw new IOException("No image encoder for storage format [" + format + "].");
+			}
+			imageStream.reset();
+			encoder.encodeImage(image, imageStream);
+			// Read back from the buffer instead of a copy of it
+			hib.addImage(header, imageStream.getInputStream(), imageStream.size());
+		}
+
+		@Override
+		public void close(TaskAttemptContext context) throws IOException {
+			hib.close();
+		}
+	}
+
+	/**
+	 * Reusable buffer of an encoded image, read back without copying it.
+	 */
+	private static class ImageBuffer extends ByteArrayOutputStream {
+
+		public ImageBuffer(int size) {
+			super(size);
+		}
+
+		public InputStream getInputStream() {
+			return new ByteArrayInputStream(buf, 0, count);
+		}
+	}
+
+	/**
+	 * Sets the compression of the image data written by a job.
+	 *
+	 * @param job job to configure
+	 * @param compression compression of the image data
+	 */
+	public static void setCompression(Job job, BioHibCompression compression) {
+		job.getConfiguration().set(COMPRESSION, compression.name());
+	}
+
+	/**
+	 * Makes a job merge its BioHIB parts into one BioHIB in its output
+	 * directory once it has committed.
+	 *
+	 * @param job job to configure
+	 * @param name file name of the merged BioHIB, e.g. <code>bundle.hib</code>
+	 */
+	public static void setMergeOutput(Job job, String name) {
+		Configuration conf = job.getConfiguration();
+		conf.setBoolean(MERGE, true);
+		conf.set(MERGE_NAME, name);
+	}
+
+	@Override
+	public RecordWriter<BioHipiImageHeader, BioHipiImage> getRecordWriter(TaskAttemptContext context)
+			throws IOException, InterruptedException {
+		Configuration conf = context.getConfiguration();
+		Path path = getDefaultWorkFile(context, ".hib");
+		BioHipiImageBundle hib = new BioHipiImageBundle(path, conf);
+		hib.setCompression(BioHibCompression.valueOf(conf.get(COMPRESSION, BioHibCompression.getDefault().name()).toUpperCase()));
+		hib.openForWrite(false);
+		return new BioHibRecordWriter(hib);
+	}
+
+	@Override
+	public synchronized OutputCommitter getOutputCommitter(TaskAttemptContext context) throws IOException {
+		if (committer == null) {
+			committer = new BioHibOutputCommitter(getOutputPath(context), context);
+		}
+		return committer;
+	}
+}
@@ -0,0 +1,201 @@
+package org.biohipi.imagebundle.mapreduce;
+
+import org.biohipi.image.BioHipiImage;
+import org.biohipi.image.BioHipiImageHeader;
+import org.biohipi.image.BioHipiImageHeader.BioHipiImageFormat;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * MapReduce {@link RecordReader} for BioHIB files that decodes several images concurrently. The
+ * records of the split are read ahead in file order and the image of every record that passes the
+ * filters is decoded on a pool of <code>hipi.reader.decode.threads</code> worker threads, with at
+ * most <code>hipi.reader.decode.queue</code> records (default twice the number of threads) read
+ * ahead of the current one. Records are still returned in file order, together with their decoded
+ * image. {@link BioHibInputFormat} creates this reader instead of {@link BioHibRecordReader} when
+ * more than one decode thread is configured.
+ * <br>
+ * Unlike {@link BioHibRecordReader}, every record returned is decoded, whether or not its value is
+ * used. Splits, memory-mapped mode, prefetching and record filters are handled as described in
+ * {@link AbstractBioHibRecordReader}. The decode counters of {@link BioHibCounter} add up the time
+ * spent by all worker threads.
+ * <br>
+ * As with {@link BioHibRecordReader}, the value of a record whose image cannot be decoded is null;
+ * the failure is logged once with the byte offset of the record and is available from {@link
+ * #getDecodeException()}.
+ */
+public class BioHibParallelRecordReader extends AbstractBioHibRecordReader<BioHipiImage> {
+
+  private static final Log LOG = LogFactory.getLog(BioHibParallelRecordReader.class);
+
+  /**
+   * Image record read ahead of the current one, with the pending decode of its image.
+   */
+  private static class PendingRecord {
+    private final BioHipiImageHeader header;
+    private final BioHipiImageFormat format;
+    private final long offset;
+    private final DecodeTask task;
+    private final Future<BioHipiImage> image;
+
+    private PendingRecord(BioHipiImageHeader header, BioHipiImageFormat format, long offset, DecodeTask task, Future<BioHipiImage> image) {
+      this.header = header;
+      this.format = format;
+      this.offset = offset;
+      this.task = task;
+      this.image = image;
+    }
+  }
+
+  /**
+   * Decodes one image on a worker thread and measures the time it takes.
+   */
+  private static class DecodeTask implements Callable<BioHipiImage> {
+    private final Callable<BioHipiImage> decoder;
+    private long elapsed = 0;
+
+    private DecodeTask(Callable<BioHipiImage> decoder) {
+      this.decoder = decoder;
+    }
+
+    @Override
+    public BioHipiImage call() throws Exception {
+      long start = System.nanoTime();
+      try {
+        return decoder.call();
+      } finally {
+        // Read by the record reader after the future has completed
+        elapsed = (System.nanoTime() - start) / 1000;
+      }
+    }
+  }
+
+  private Counter imagesDecoded;
+  private Counter decodeTime;
+  private Counter decodeFailures;
+
+  private ExecutorService executor;
+  private int queueLength;
+  private final ArrayDeque<PendingRecord> pending = new ArrayDeque<PendingRecord>();
+  private boolean exhausted = false;
+
+  private PendingRecord current = null;
+  private BioHipiImage currentImage = null;
+  private Exception currentException = null;
+
+  @Override
+  public void initialize(InputSplit split, TaskAttemptContext context)
+  throws IOException, IllegalArgumentException {
+    imagesDecoded = context.getCounter(BioHibCounter.IMAGES_DECODED);
+    decodeTime = context.getCounter(BioHibCounter.DECODE_TIME_US);
+    decodeFailures = context.getCounter(BioHibCounter.DECODE_FAILURES);
+
+    int threads = Math.max(context.getConfiguration().getInt("hipi.reader.decode.threads", 1), 1);
+    queueLength = Math.max(context.getConfiguration().getInt("hipi.reader.decode.queue", 2 * threads), 1);
+    executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+        private int count = 0;
+
+        @Override
+        public synchronized Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "BioHibParallelRecordReader decoder " + (count++));
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+    super.initialize(split, context);
+  }
+
+  @Override
+  protected boolean readRecord() throws IOException {
+    return reader.nextKeyValue();
+  }
+
+  /**
+   * Records read ahead need their own header and image, so objects are never reused.
+   */
+  @Override
+  protected boolean supportsObjectReuse() {
+    return false;
+  }
+
+  @Override
+  public boolean nextKeyValue() throws IOException, InterruptedException  {
+    // Keep the decode queue full, reading ahead in file order
+    while (!exhausted && pending.size() < queueLength) {
+      if (!super.nextKeyValue()) {
+        exhausted = true;
+        break;
+      }
+      DecodeTask task = new DecodeTask(reader.detachImageDecoder());
+      pending.add(new PendingRecord(reader.getCurrentKey(), reader.getImageStorageFormat(), reader.getCurrentRecordOffset(), task, executor.submit(task)));
+    }
+
+    current = pending.poll();
+    currentImage = null;
+    currentException = null;
+    if (current == null) {
+      return false;
+    }
+
+    try {
+      currentImage = current.image.get();
+    } catch (ExecutionException e) {
+      // Also counted as a decode failure below
+      currentException = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+      LOG.warn("Failed to decode image record at byte offset [" + current.offset + "]", currentException);
+    }
+    decodeTime.increment(current.task.elapsed);
+    context.getCounter(BioHibCounter.DECODE_TIME_GROUP, current.format.name()).increment(current.task.elapsed);
+    if (currentImage == null) {
+      decodeFailures.increment(1);
+    } else {
+      imagesDecoded.increment(1);
+    }
+    return true;
+  }
+
+  @Override
+  public BioHipiImageHeader getCurrentKey() throws IOException, InterruptedException  {
+    return current == null ? null : current.header;
+  }
+
+  @Override
+  public BioHipiImage getCurrentValue() throws IOException, InterruptedException  {
+    return currentImage;
+  }
+
+  /**
+   * @return Exception that made decoding the image of the current record fail, or null if its
+   * image was decoded
+   */
+  public Exception getDecodeException() {
+    return currentException;
+  }
+
+  @Override
+  public void close() throws IOException {
+    for (PendingRecord record : pending) {
+      record.image.cancel(true);
+    }
+    pending.clear();
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+    super.close();
+  }
+}
@@ -0,0 +1,62 @@
+package org.biohipi.imagebundle.mapreduce;
+
+import org.apache.hadoop.io.Writable;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Location of an image record in the data file of a BioHIB: the byte offset of its
+ * signature and its length in bytes (signature, image header and image data). Emitted
+ * as value by {@link BioHibHeaderRecordReader}.
+ */
+public class BioHibRecordInfo implements Writable {
+
+	private long offset;
+	private long length;
+
+	public BioHibRecordInfo() {
+	}
+
+	public BioHibRecordInfo(long offset, long length) {
+		set(offset, length);
+	}
+
+	public void set(long offset, long length) {
+		this.offset = offset;
+		this.length = length;
+	}
+
+	/**
+	 * @return Byte offset of the image record in the data file
+	 */
+	public long getOffset() {
+		return offset;
+	}
+
+	/**
+	 * @return Length in bytes of the image record
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		out.writeLong(offset);
+		out.writeLong(length);
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		offset = in.readLong();
+		length = in.readLong();
+	}
+
+	@Override
+	public String toString() {
+		return offset + "\t" + length;
+	}
+
+}
@@ -1,70 +1,84 @@
 package org.biohipi.imagebundle.mapreduce;
 
 import org.biohipi.image.BioHipiImage;
-import org.biohipi.image.BioHipiImageHeader;
-import org.biohipi.imagebundle.BioHipiImageBundle;
 
-import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.fs.FileSystem;
-import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.Counter;
 import org.apache.hadoop.mapreduce.InputSplit;
 import org.apache.hadoop.mapreduce.RecordReader;
 import org.apache.hadoop.mapreduce.TaskAttemptContext;
-import org.apache.hadoop.mapreduce.lib.input.FileSplit;
 
 import java.io.IOException;
 
 /**
- * Main MapReduce {@link RecordReader} class for BioHIB files. Utilizes 
+ * Main MapReduce {@link RecordReader} class for BioHIB files. Utilizes
  * {@link org.biohipi.imagebundle.BioHipiImageBundle.BioHibReader} to read and decode
  * the individual image records (image meta data + image pixel data) stored in a BioHIB. This class
  * determines the desired image type (the second "value" parameter to the map method in the
  * Mapper class) dynamically using the {@link BioHipiImageFactory} class.
+ * <br>
+ * Splits, memory-mapped mode and record filters are handled as described in
+ * {@link AbstractBioHibRecordReader}.
+ * <br>
+ * Images are decoded lazily by {@link #getCurrentValue()}. Since {@link
+ * org.apache.hadoop.mapreduce.Mapper#run} fetches the value of every record it passes to map, records
+ * that a job does not process should be excluded with the filters of {@link BioHibInputFormat} rather
+ * than in the map method, so that they are skipped before their image is decoded. The number of
+ * decoded images, decode failures and decode time (in total and per storage format) are reported as
+ * {@link BioHibCounter}s.
+ * <br>
+ * A record whose image cannot be decoded, e.g. because its storage format has no decoder or its
+ * image data is corrupt, is still returned: its value is null. Mappers must check the value before
+ * using it. The failure is logged once with the byte offset of the record and is available from
+ * {@link #getDecodeException()}.
  */
-public class BioHibRecordReader extends RecordReader<BioHipiImageHeader, BioHipiImage> {
+public class BioHibRecordReader extends AbstractBioHibRecordReader<BioHipiImage> {
 
-  private Configuration conf;
-  private BioHipiImageBundle.BioHibReader reader;
+  private Counter imagesDecoded;
+  private Counter decodeTime;
+  private Counter decodeFailures;
 
-  @Override
-  public void initialize(InputSplit split, TaskAttemptContext context) 
-  throws IOException, IllegalArgumentException {
+  // Whether the image of the current record was decoded
+  private boolean decoded;
 
-    FileSplit bundleSplit = (FileSplit)split;
-    conf = context.getConfiguration();
-    
-    Path path = bundleSplit.getPath();
-    FileSystem fs = path.getFileSystem(conf);
-    
-    // Report locations of first and last byte in image segment
-    System.out.println("BioHibRecordReader#initialize: Input split starts at byte offset " + bundleSplit.getStart() +
-		       " and ends at byte offset " + (bundleSplit.getStart() + bundleSplit.getLength() - 1));
-    
-    reader = new BioHipiImageBundle.BioHibReader(fs, path, bundleSplit.getStart(), bundleSplit.getStart() + bundleSplit.getLength() - 1);
-  }
-  
   @Override
-  public void close() throws IOException {
-    reader.close();
+  public void initialize(InputSplit split, TaskAttemptContext context)
+  throws IOException, IllegalArgumentException {
+    imagesDecoded = context.getCounter(BioHibCounter.IMAGES_DECODED);
+    decodeTime = context.getCounter(BioHibCounter.DECODE_TIME_US);
+    decodeFailures = context.getCounter(BioHibCounter.DECODE_FAILURES);
+    super.initialize(split, context);
   }
 
   @Override
-  public BioHipiImageHeader getCurrentKey() throws IOException, InterruptedException  {
-    return reader.getCurrentKey();
+  protected boolean readRecord() throws IOException {
+    decoded = false;
+    return reader.nextKeyValue();
   }
 
   @Override
   public BioHipiImage getCurrentValue() throws IOException, InterruptedException  {
-    return reader.getCurrentValue();
+    if (decoded) {
+      return reader.getCurrentValue();
+    }
+    decoded = true;
+    long start = System.nanoTime();
+    BioHipiImage image = reader.getCurrentValue();
+    long elapsed = (System.nanoTime() - start) / 1000;
+    decodeTime.increment(elapsed);
+    context.getCounter(BioHibCounter.DECODE_TIME_GROUP, reader.getImageStorageFormat().name()).increment(elapsed);
+    if (image == null) {
+      decodeFailures.increment(1);
+    } else {
+      imagesDecoded.increment(1);
+    }
+    return image;
   }
-  
-  @Override
-  public float getProgress() throws IOException  {
-    return reader.getProgress();
-  }
-  
-  @Override
-  public boolean nextKeyValue() throws IOException, InterruptedException  {
-    return reader.nextKeyValue();
+
+  /**
+   * @return Exception that made decoding the image of the current record fail, or null if its
+   * image was decoded or not decoded yet
+   */
+  public Exception getDecodeException() {
+    return reader.getDecodeException();
   }
 }
@@ -0,0 +1,313 @@
+package org.biohipi.imagebundle.mapreduce;
+
+import org.apache.hadoop.conf.Configurable;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileSplit;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cache of the split plans computed by {@link BioHibInputFormat#computeSplits} for individual
+ * BioHIB files, so that jobs that are submitted repeatedly over the same BioHIBs do not open
+ * their index files again. A plan is keyed by the path, length and modification time of the
+ * index file together with the configuration properties that affect splitting (number of map
+ * tasks, filters, ...), so rewriting or appending to a BioHIB or changing the filters of a job
+ * invalidates it. Plans that depend on a sidecar file, the inverted index for meta data filters
+ * or the meta data file for cost-balanced splits, are also keyed by its length and modification
+ * time, so rebuilding the sidecar invalidates them too.
+ * <br>
+ * Caching is off unless <code>hipi.split.cache</code> is true. Plans are then kept in memory for
+ * the lifetime of the client JVM and, if <code>hipi.split.cache.dir</code> names a directory, also
+ * persisted there, one file per plan, and shared by all clients that use the same directory. The
+ * host names stored in a plan are those of the data blocks when it was computed, so they may be
+ * out of date after the blocks have been moved; this only affects data locality. Plans balanced by
+ * a cost function that implements {@link org.apache.hadoop.conf.Configurable} are never cached,
+ * since the properties it reads are not part of the key.
+ */
+public class BioHibSplitCache {
+
+	private static final int MAGIC = 0x81911b53;
+	private static final int VERSION_1 = 1;
+
+	private static final int FILE_SPLIT = 0;
+	private static final int COMBINE_FILE_SPLIT = 1;
+
+	private static final int MAX_ENTRIES = 1024;
+
+	private static final Map<String, List<InputSplit>> memoryCache = new LinkedHashMap<String, List<InputSplit>>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, List<InputSplit>> eldest) {
+			return size() > MAX_ENTRIES;
+		}
+	};
+
+	private BioHibSplitCache() {
+	}
+
+	/**
+	 * Checks whether split plans are cached, i.e. caching is enabled and
+	 * the cost function of the job, if any, does not read the job
+	 * configuration.
+	 */
+	private static boolean isEnabled(Configuration conf) {
+		if (!conf.getBoolean("hipi.split.cache", false)) {
+			return false;
+		}
+		Class<?> costFunctionClass = conf.getClass(BioHibInputFormat.COST_FUNCTION, null);
+		return costFunctionClass == null || !Configurable.class.isAssignableFrom(costFunctionClass);
+	}
+
+	/**
+	 * Looks up the split plan of a BioHIB in memory, then in the cache
+	 * directory.
+	 *
+	 * @param conf job configuration
+	 * @param indexFile status of the BioHIB index file
+	 * @return the cached splits, or null if there is no valid plan
+	 */
+	public static List<InputSplit> get(Configuration conf, FileStatus indexFile) {
+		if (!isEnabled(conf)) {
+			return null;
+		}
+		String key;
+		try {
+			key = getKey(conf, indexFile);
+		} catch (IOException e) {
+			System.err.println("Failed to look up cached split plan of [" + indexFile.getPath() + "]: " + e.getMessage());
+			return null;
+		}
+		synchronized (memoryCache) {
+			List<InputSplit> splits = memoryCache.get(key);
+			if (splits != null) {
+				return new ArrayList<InputSplit>(splits);
+			}
+		}
+		Path cacheFile = getCacheFile(conf, key);
+		if (cacheFile == null) {
+			return null;
+		}
+		try {
+			FileSystem fs = cacheFile.getFileSystem(conf);
+			if (!fs.exists(cacheFile)) {
+				return null;
+			}
+			List<InputSplit> splits = readPlan(fs, cacheFile, key);
+			if (splits != null) {
+				synchronized (memoryCache) {
+					memoryCache.put(key, splits);
+				}
+				return new ArrayList<InputSplit>(splits);
+			}
+		} catch (IOException e) {
+			System.err.println("Failed to read cached split plan [" + cacheFile + "]: " + e.getMessage());
+		}
+		return null;
+	}
+
+	/**
+	 * Stores the split plan of a BioHIB in memory and, if configured, in
+	 * the cache directory. Failures to persist the plan are reported and
+	 * otherwise ignored.
+	 *
+	 * @param conf job configuration
+	 * @param indexFile status of the BioHIB index file
+	 * @param splits splits of the BioHIB, {@link FileSplit}s or {@link
+	 * CombineFileSplit}s
+	 */
+	public static void put(Configuration conf, FileStatus indexFile, List<InputSplit> splits) {
+		if (!isEnabled(conf)) {
+			return;
+		}
+		String key;
+		try {
+			key = getKey(conf, indexFile);
+		} catch (IOException e) {
+			System.err.println("Failed to cache split plan of [" + indexFile.getPath() + "]: " + e.getMessage());
+			return;
+		}
+		synchronized (memoryCache) {
+			memoryCache.put(key, new ArrayList<InputSplit>(splits));
+		}
+		Path cacheFile = getCacheFile(conf, key);
+		if (cacheFile == null) {
+			return;
+		}
+		try {
+			writePlan(cacheFile.getFileSystem(conf), cacheFile, key, splits);
+		} catch (IOException | InterruptedException e) {
+			System.err.println("Failed to write cached split plan [" + cacheFile + "]: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Removes all split plans held in memory.
+	 */
+	public static void clear() {
+		synchronized (memoryCache) {
+			memoryCache.clear();
+		}
+	}
+
+	private static String getKey(Configuration conf, FileStatus indexFile) throws IOException {
+		StringBuilder key = new StringBuilder();
+		key.append(indexFile.getPath().toString()).append('\n');
+		key.append(indexFile.getLen()).append('\n');
+		key.append(indexFile.getModificationTime()).append('\n');
+		for (String property : BioHibInputFormat.SPLIT_PROPERTIES) {
+			String value = conf.get(property);
+			if (value != null) {
+				key.append(property).append('=').append(value).append('\n');
+			}
+		}
+
+		// Sidecar files read while computing the plan
+		FileSystem fs = indexFile.getPath().getFileSystem(conf);
+		if (conf.get(BioHibInputFormat.METADATA_KEY) != null && conf.get(BioHibInputFormat.METADATA_VALUE) != null) {
+			appendSidecar(key, fs, indexFile.getPath().suffix(".inv"));
+		}
+		if (conf.get(BioHibInputFormat.COST_FUNCTION) != null) {
+			appendSidecar(key, fs, indexFile.getPath().suffix(".meta"));
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Appends the length and modification time of a sidecar file to a
+	 * key, or a marker if it does not exist.
+	 */
+	private static void appendSidecar(StringBuilder key, FileSystem fs, Path sidecar) throws IOException {
+		key.append(sidecar.getName()).append('=');
+		if (fs.exists(sidecar)) {
+			FileStatus status = fs.getFileStatus(sidecar);
+			key.append(status.getLen()).append('@').append(status.getModificationTime());
+		} else {
+			key.append("none");
+		}
+		key.append('\n');
+	}
+
+	private static Path getCacheFile(Configuration conf, String key) {
+		String dir = conf.get("hipi.split.cache.dir");
+		if (dir == null) {
+			return null;
+		}
+		try {
+			MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+			StringBuilder name = new StringBuilder();
+			for (byte b : sha1.digest(key.getBytes(StandardCharsets.UTF_8))) {
+				name.append(String.format("%02x", b));
+			}
+			return new Path(dir, name.append(".splits").toString());
+		} catch (NoSuchAlgorithmException e) {
+			System.err.println("SHA-1 digest not available, split plans are not persisted");
+			return null;
+		}
+	}
+
+	/**
+	 * Writes a plan to a temporary file that is renamed into place, so
+	 * that concurrent readers never see a partial plan.
+	 */
+	private static void writePlan(FileSystem fs, Path cacheFile, String key, List<InputSplit> splits)
+			throws IOException, InterruptedException {
+		Path tmpFile = cacheFile.suffix("." + System.nanoTime() + ".tmp");
+		FSDataOutputStream out = fs.create(tmpFile, true);
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION_1);
+			Text.writeString(out, key);
+			out.writeInt(splits.size());
+			for (InputSplit split : splits) {
+				Path[] paths;
+				long[] starts;
+				long[] lengths;
+				if (split instanceof CombineFileSplit) {
+					CombineFileSplit combineSplit = (CombineFileSplit)split;
+					out.writeByte(COMBINE_FILE_SPLIT);
+					paths = combineSplit.getPaths();
+					starts = combineSplit.getStartOffsets();
+					lengths = combineSplit.getLengths();
+				} else {
+					FileSplit fileSplit = (FileSplit)split;
+					out.writeByte(FILE_SPLIT);
+					paths = new Path[] { fileSplit.getPath() };
+					starts = new long[] { fileSplit.getStart() };
+					lengths = new long[] { fileSplit.getLength() };
+				}
+				out.writeInt(paths.length);
+				for (int i = 0; i < paths.length; i++) {
+					Text.writeString(out, paths[i].toString());
+					out.writeLong(starts[i]);
+					out.writeLong(lengths[i]);
+				}
+				String[] hosts = split.getLocations();
+				out.writeInt(hosts.length);
+				for (String host : hosts) {
+					Text.writeString(out, host);
+				}
+			}
+		} finally {
+			out.close();
+		}
+		fs.delete(cacheFile, false);
+		if (!fs.rename(tmpFile, cacheFile)) {
+			fs.delete(tmpFile, false);
+		}
+	}
+
+	/**
+	 * @return the plan, or null if the file holds the plan of another key
+	 * (hash collision) or has an unknown format
+	 */
+	private static List<InputSplit> readPlan(FileSystem fs, Path cacheFile, String key) throws IOException {
+		FSDataInputStream in = fs.open(cacheFile);
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION_1 || !key.equals(Text.readString(in))) {
+				return null;
+			}
+			int count = in.readInt();
+			List<InputSplit> splits = new ArrayList<InputSplit>(count);
+			for (int s = 0; s < count; s++) {
+				int type = in.readByte();
+				int ranges = in.readInt();
+				Path[] paths = new Path[ranges];
+				long[] starts = new long[ranges];
+				long[] lengths = new long[ranges];
+				for (int i = 0; i < ranges; i++) {
+					paths[i] = new Path(Text.readString(in));
+					starts[i] = in.readLong();
+					lengths[i] = in.readLong();
+				}
+				String[] hosts = new String[in.readInt()];
+				for (int h = 0; h < hosts.length; h++) {
+					hosts[h] = Text.readString(in);
+				}
+				if (type == COMBINE_FILE_SPLIT) {
+					splits.add(new CombineFileSplit(paths, starts, lengths, hosts));
+				} else {
+					splits.add(new FileSplit(paths[0], starts[0], lengths[0], hosts));
+				}
+			}
+			return splits;
+		} finally {
+			in.close();
+		}
+	}
+}
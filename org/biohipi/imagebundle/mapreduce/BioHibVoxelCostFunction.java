@@ -0,0 +1,47 @@
+package org.biohipi.imagebundle.mapreduce;
+
+import org.biohipi.image.BioHipiImageHeader;
+import org.biohipi.image.BioHipiImageHeader.BioHipiKeyMetaData;
+
+/**
+ * {@link BioHibCostFunction} that estimates the cost of an image by its
+ * number of voxels or pixels: x * y * z * t for NIfTI images, rows * columns
+ * for DICOM images and width * height for raster images. Images whose
+ * dimensions are missing from the header cost their record length in bytes.
+ */
+public class BioHibVoxelCostFunction implements BioHibCostFunction {
+
+	@Override
+	public double getCost(BioHipiImageHeader header, long recordLength) {
+		try {
+			switch (header.getStorageFormat()) {
+			case NIFTI:
+				return getDimension(header, BioHipiKeyMetaData.X_LENGTH) * getDimension(header, BioHipiKeyMetaData.Y_LENGTH) *
+						getDimension(header, BioHipiKeyMetaData.Z_LENGTH) * getDimension(header, BioHipiKeyMetaData.T_LENGTH);
+			case DICOM:
+				return getDimension(header, BioHipiKeyMetaData.ROWS) * getDimension(header, BioHipiKeyMetaData.COLUMNS);
+			case JPEG:
+			case PNG:
+				return getDimension(header, BioHipiKeyMetaData.WIDTH) * getDimension(header, BioHipiKeyMetaData.HEIGHT);
+			default:
+				return recordLength;
+			}
+		} catch (NumberFormatException e) {
+			return recordLength;
+		}
+	}
+
+	/**
+	 * @return the dimension stored under key, at least 1 (unused NIfTI
+	 * dimensions are stored as 0)
+	 *
+	 * @throws NumberFormatException if the dimension is missing or invalid
+	 */
+	private static double getDimension(BioHipiImageHeader header, String key) throws NumberFormatException {
+		String value = header.getMetaData(key);
+		if (value == null) {
+			throw new NumberFormatException("Missing image dimension [" + key + "]");
+		}
+		return Math.max(1, Integer.parseInt(value.trim()));
+	}
+}
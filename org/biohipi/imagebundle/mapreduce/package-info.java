@@ -1,5 +1,5 @@
 /**
- * Classes for processing BioHIBs including producing input splits and reading and
- * decoding image records in the context of a MapReduce program.
+ * Classes for processing BioHIBs including producing input splits, reading and
+ * decoding image records and writing image records in the context of a MapReduce program.
  */
-package org.biohipi.imagebundle.mapreduce;
\ No newline at end of file
+package org.biohipi.imagebundle.mapreduce;
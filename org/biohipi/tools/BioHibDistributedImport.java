@@ -0,0 +1,254 @@
+package org.biohipi.tools;
+
+import org.biohipi.image.BioHipiImageHeader.BioHipiImageFormat;
+import org.biohipi.image.BioHipiImageHeader.BioHipiKeyMetaData;
+import org.biohipi.imagebundle.BioHibCompression;
+import org.biohipi.imagebundle.BioHipiImageBundle;
+import org.biohipi.imagebundle.mapreduce.BioHibOutputFormat;
+import org.apache.commons.cli.BasicParser;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.Parser;
+import org.apache.commons.cli.ParseException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.lib.input.NLineInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.LazyOutputFormat;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Imports image files into a BioHIB with a map-only MapReduce job, for image collections too large
+ * to be imported by a single {@link BioHibImport} process. The input is a directory or glob of
+ * image files on HDFS, or a listing file with one path per line. The listing is split with
+ * {@link NLineInputFormat}, and each mapper streams the image files of its lines into its own BioHIB
+ * part with {@link BioHipiImageBundle#addImage(FileSystem, FileStatus, BioHipiImageFormat, java.util.Map)}. Once the job has committed,
+ * the {@link org.biohipi.imagebundle.mapreduce.BioHibOutputCommitter} merges the parts into a
+ * single BioHIB unless they are kept with <code>-k</code>.
+ */
+public class BioHibDistributedImport extends Configured implements Tool {
+
+	private static final Options options = new Options();
+	private static final Parser parser = new BasicParser();
+	static {
+		options.addOption("f", "force", false, "force overwrite if output directory already exists");
+		options.addOption("l", "listing", false, "input is a file listing one image path per line");
+		options.addOption("n", "files-per-map", true, "number of image files imported by each map task (default 1000)");
+		options.addOption("k", "keep-parts", false, "keep one HIB per map task instead of merging them");
+		options.addOption("c", "compression", true, "compress image data with codec (none, deflate, gzip, bzip2, snappy, lz4)");
+		options.addOption("i", "index-keys", true, "comma-separated meta data keys to index in an inverted index (e.g. \"patient id,patient name\")");
+	}
+
+	public static enum ImportCounter {
+		IMAGES_IMPORTED,
+		FILES_SKIPPED
+	}
+
+	/**
+	 * Appends the image files named by its input lines to a BioHIB part
+	 * in the work directory of the task. The part is created with the
+	 * first imported image, so a task without images writes no part.
+	 */
+	public static class BioHibImportMapper extends Mapper<LongWritable, Text, NullWritable, NullWritable> {
+
+		private BioHipiImageBundle hib = null;
+
+		private BioHipiImageBundle getBundle(Context context) throws IOException, InterruptedException {
+			if (hib == null) {
+				Configuration conf = context.getConfiguration();
+				BioHipiImageBundle part = new BioHipiImageBundle(FileOutputFormat.getPathForWorkFile(context, "part", ".hib"), conf);
+				part.setCompression(BioHibCompression.valueOf(conf.get(BioHibOutputFormat.COMPRESSION, BioHibCompression.getDefault().name()).toUpperCase()));
+				part.openForWrite(false);
+				hib = part;
+			}
+			return hib;
+		}
+
+		@Override
+		public void map(LongWritable offset, Text line, Context context) throws IOException, InterruptedException {
+			String source = line.toString().trim();
+			if (source.isEmpty()) {
+				return;
+			}
+			Path path = new Path(source);
+			BioHipiImageFormat format = BioHibImport.getImageFormat(path.getName());
+			if (format == null) {
+				context.getCounter(ImportCounter.FILES_SKIPPED).increment(1);
+				return;
+			}
+
+			// Stream the image file into the BioHIB part
+			FileSystem fs = path.getFileSystem(context.getConfiguration());
+			FileStatus file = fs.getFileStatus(path);
+			getBundle(context).addImage(fs, file, format, Collections.singletonMap(BioHipiKeyMetaData.SOURCE, file.getPath().toString()));
+			context.getCounter(ImportCounter.IMAGES_IMPORTED).increment(1);
+			context.progress();
+		}
+
+		@Override
+		public void cleanup(Context context) throws IOException {
+			if (hib != null) {
+				hib.close();
+			}
+		}
+	}
+
+	private static void usage() {
+		HelpFormatter formatter = new HelpFormatter();
+		formatter.printHelp("hibDistributedImport.jar [options] <image directory, glob or listing> <output directory>", options);
+		System.exit(0);
+	}
+
+	/**
+	 * Writes the paths of the image files matching a directory or glob to
+	 * a listing file, in the order of their paths.
+	 *
+	 * @return number of files listed
+	 */
+	private static int writeListing(Configuration conf, Path input, Path listing) throws IOException {
+		FileSystem fs = input.getFileSystem(conf);
+		FileStatus[] matches = fs.globStatus(input);
+		if (matches == null) {
+			return 0;
+		}
+		if (matches.length == 1 && matches[0].isDirectory()) {
+			matches = fs.listStatus(matches[0].getPath());
+		}
+		Arrays.sort(matches);
+
+		int count = 0;
+		FSDataOutputStream out = listing.getFileSystem(conf).create(listing, true);
+		Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+		try {
+			for (FileStatus file : matches) {
+				if (file.isFile() && BioHibImport.getImageFormat(file.getPath().getName()) != null) {
+					writer.write(file.getPath().toString());
+					writer.write('\n');
+					count++;
+				}
+			}
+		} finally {
+			writer.close();
+		}
+		return count;
+	}
+
+	public int run(String[] args) throws Exception {
+
+		// Attempt to parse the command line arguments
+		CommandLine line = null;
+		try {
+			line = parser.parse(options, args);
+		}
+		catch( ParseException exp ) {
+			usage();
+		}
+		if (line == null) {
+			usage();
+		}
+
+		String [] leftArgs = line.getArgs();
+		if (leftArgs.length != 2) {
+			usage();
+		}
+
+		Path input = new Path(leftArgs[0]);
+		Path outputDir = new Path(leftArgs[1]);
+
+		int filesPerMap = 1000;
+		BioHibCompression compression = BioHibCompression.NONE;
+		try {
+			if (line.hasOption("n")) {
+				filesPerMap = Math.max(Integer.parseInt(line.getOptionValue("n")), 1);
+			}
+			if (line.hasOption("c")) {
+				compression = BioHibCompression.valueOf(line.getOptionValue("c").toUpperCase());
+			}
+		} catch (IllegalArgumentException e) {
+			usage();
+		}
+
+		Configuration conf = getConf();
+		conf.set(BioHibOutputFormat.COMPRESSION, compression.name());
+		if (line.hasOption("i")) {
+			conf.setStrings("hipi.bundle.index.keys", line.getOptionValue("i").split(","));
+		}
+		FileSystem fs = outputDir.getFileSystem(conf);
+		if (fs.exists(outputDir)) {
+			if (!line.hasOption("f")) {
+				System.err.println("Output directory [" + outputDir + "] already exists, use -f to overwrite it.");
+				return 1;
+			}
+			fs.delete(outputDir, true);
+		}
+
+		// List the image files of a directory or glob next to the output.
+		// The generated listing is deleted however the job ends.
+		Path listing = input;
+		if (!line.hasOption("l")) {
+			listing = new Path(outputDir.getParent(), "." + outputDir.getName() + ".listing");
+		}
+		boolean success;
+		try {
+			if (!line.hasOption("l")) {
+				int count = writeListing(conf, input, listing);
+				System.out.println("Listed " + count + " image files of [" + input + "]");
+			}
+
+			Job job = Job.getInstance(conf, "hibDistributedImport");
+			job.setJarByClass(BioHibDistributedImport.class);
+			job.setMapperClass(BioHibImportMapper.class);
+			job.setNumReduceTasks(0);
+			job.setOutputKeyClass(NullWritable.class);
+			job.setOutputValueClass(NullWritable.class);
+
+			// Speculative attempts of a map task would read all of its image
+			// files again, only to have one of their BioHIB parts discarded
+			job.setMapSpeculativeExecution(false);
+
+			job.setInputFormatClass(NLineInputFormat.class);
+			NLineInputFormat.setInputPaths(job, listing);
+			NLineInputFormat.setNumLinesPerSplit(job, filesPerMap);
+
+			// The mappers write their BioHIB parts themselves, so no record
+			// writer of the output format creates an empty part either
+			LazyOutputFormat.setOutputFormatClass(job, BioHibOutputFormat.class);
+			FileOutputFormat.setOutputPath(job, outputDir);
+			if (!line.hasOption("k")) {
+				BioHibOutputFormat.setMergeOutput(job, outputDir.getName() + ".hib");
+			}
+
+			success = job.waitForCompletion(true);
+		} finally {
+			if (!line.hasOption("l")) {
+				fs.delete(listing, false);
+			}
+		}
+		return success ? 0 : 1;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int res = ToolRunner.run(new BioHibDistributedImport(), args);
+		System.exit(res);
+	}
+
+}
@@ -1,8 +1,12 @@
 package org.biohipi.tools;
 
+import org.biohipi.imagebundle.BioHibCompression;
 import org.biohipi.imagebundle.BioHipiImageBundle;
+import org.biohipi.image.BioHipiImageHeader;
 import org.biohipi.image.BioHipiImageHeader.BioHipiImageFormat;
 import org.biohipi.image.BioHipiImageHeader.BioHipiKeyMetaData;
+import org.biohipi.image.io.CodecManager;
+import org.biohipi.image.io.ImageDecoder;
 import org.apache.commons.cli.BasicParser;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.HelpFormatter;
@@ -11,16 +15,27 @@ import org.apache.commons.cli.Parser;
 import org.apache.commons.cli.ParseException;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.FileStatus;
-import org.apache.hadoop.fs.FSDataInputStream;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.util.HashMap;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.SequenceInputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 public class BioHibImport {
 
@@ -29,6 +44,94 @@ public class BioHibImport {
 	static {
 		options.addOption("f", "force", false, "force overwrite if output HIB already exists");
 		options.addOption("h", "hdfs-input", false, "assume input directory is on HDFS");
+		options.addOption("c", "compression", true, "compress image data with codec (none, deflate, gzip, bzip2, snappy, lz4)");
+		options.addOption("i", "index-keys", true, "comma-separated meta data keys to index in an inverted index (e.g. \"patient id,patient name\")");
+		options.addOption("t", "threads", true, "number of threads reading input files and decoding their headers (default 1)");
+		options.addOption("m", "max-memory", true, "maximum megabytes of file prefixes read ahead to decode image headers (default 256)");
+		options.addOption("a", "block-align", false, "pad image records so that none straddles a block boundary of the output HIB");
+		options.addOption("r", "record-length", true, "size the blocks of the output HIB to hold whole image records of up to this many bytes (implies -a)");
+	}
+
+	/**
+	 * Reads the first bytes of an input image file and decodes its header
+	 * from them on a worker thread, or from the whole file if the header
+	 * extends past them. The image data is streamed from the file into the
+	 * BioHIB by the thread writing the BioHIB.
+	 */
+	private static class ImportTask implements Callable<ImportTask> {
+		private final FileSystem fs;
+		private final Path path;
+		private final String source;
+		private final long length;
+		private final BioHipiImageFormat format;
+		private final int prefixLength;
+
+		private BioHipiImageHeader header = null;
+		private byte[] prefix = null;
+
+		/**
+		 * @param fs file system of the input file, the raw local file
+		 * system for a local file
+		 * @param prefixLength maximum number of bytes read to decode the
+		 * header
+		 */
+		private ImportTask(FileSystem fs, Path path, String source, long length, BioHipiImageFormat format, int prefixLength) {
+			this.fs = fs;
+			this.path = path;
+			this.source = source;
+			this.length = length;
+			this.format = format;
+			this.prefixLength = (int)Math.min(length, prefixLength);
+		}
+
+		@Override
+		public ImportTask call() throws IOException {
+			prefix = new byte[prefixLength];
+			FSDataInputStream in = fs.open(path);
+			try {
+				in.readFully(prefix);
+			} finally {
+				in.close();
+			}
+			ImageDecoder decoder = CodecManager.getDecoder(format);
+			try {
+				header = decoder.decodeHeader(new ByteArrayInputStream(prefix));
+			} catch (IOException | RuntimeException e) {
+				// Header may extend past the prefix
+				if (prefixLength == length) {
+					throw new IOException("Failed to decode header of [" + source + "]", e);
+				}
+			}
+			if (header == null && prefixLength < length) {
+				in = fs.open(path);
+				try {
+					header = decoder.decodeHeader(in);
+				} catch (IOException | RuntimeException e) {
+					throw new IOException("Failed to decode header of [" + source + "]", e);
+				} finally {
+					in.close();
+				}
+			}
+			if (header == null) {
+				throw new IOException("Failed to decode header of [" + source + "]");
+			}
+			header.addMetaData(BioHipiKeyMetaData.SOURCE, source);
+			return this;
+		}
+
+		/**
+		 * Opens the image data of the input file, starting with the prefix
+		 * already read.
+		 */
+		private InputStream openImageStream() throws IOException {
+			FSDataInputStream in = fs.open(path);
+			in.seek(prefix.length);
+			return new SequenceInputStream(new ByteArrayInputStream(prefix), in);
+		}
+
+		private String getFileName() {
+			return path.getName().toLowerCase();
+		}
 	}
 
 	private static void usage() {
@@ -38,6 +141,93 @@ public class BioHibImport {
 		System.exit(0);
 	}
 
+	/**
+	 * @return storage format of an input file, from the suffix of its
+	 * name, or null if it is not an image file
+	 */
+	static BioHipiImageFormat getImageFormat(String fileName) {
+		fileName = fileName.toLowerCase();
+		if (fileName.endsWith(".jpg") || fileName.endsWith(".jpeg")) {
+			return BioHipiImageFormat.JPEG;
+		} else if (fileName.endsWith(".png")) {
+			return BioHipiImageFormat.PNG;
+		} else if (fileName.endsWith(".nii")) {
+			return BioHipiImageFormat.NIFTI;
+		} else if (fileName.endsWith(".dcm")) {
+			return BioHipiImageFormat.DICOM;
+		}
+		return null;
+	}
+
+	/**
+	 * Imports image files into a BioHIB in the given order. A pool of
+	 * threads reads the first bytes of the files and decodes their headers
+	 * ahead of the calling thread, which streams the files into the
+	 * BioHIB. At most maxMemory bytes of file prefixes (or a single prefix,
+	 * if larger) and four files per thread are read ahead at any time.
+	 *
+	 * @throws IOException if an input file cannot be read or its header
+	 * cannot be decoded, or the image cannot be added to the BioHIB
+	 */
+	private static void importImages(List<ImportTask> tasks, BioHipiImageBundle hib, int threads, long maxMemory) throws IOException {
+		ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+				private int count = 0;
+
+				@Override
+				public synchronized Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "BioHibImport reader " + (count++));
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		ArrayDeque<Future<ImportTask>> pending = new ArrayDeque<Future<ImportTask>>();
+		long pendingBytes = 0;
+		try {
+			for (ImportTask task : tasks) {
+				// Append images in order until the new file fits
+				while (!pending.isEmpty() && (pending.size() >= 4 * threads || pendingBytes + task.prefixLength > maxMemory)) {
+					pendingBytes -= addNextImage(pending, hib);
+				}
+				pending.add(executor.submit(task));
+				pendingBytes += task.prefixLength;
+			}
+			while (!pending.isEmpty()) {
+				addNextImage(pending, hib);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Waits for the oldest pending file and streams its image into the
+	 * BioHIB.
+	 *
+	 * @return length of the prefix read ahead
+	 */
+	private static long addNextImage(ArrayDeque<Future<ImportTask>> pending, BioHipiImageBundle hib) throws IOException {
+		ImportTask task;
+		try {
+			task = pending.poll().get();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while importing images");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException)e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+		InputStream imageStream = task.openImageStream();
+		try {
+			hib.addImage(task.header, imageStream, task.length);
+		} finally {
+			imageStream.close();
+		}
+		task.prefix = null;
+		System.out.println(" ** added: " + task.getFileName());
+		return task.prefixLength;
+	}
+
 	public static void main(String[] args) throws IOException  {
 
 		// Attempt to parse the command line arguments
@@ -70,14 +260,58 @@ public class BioHibImport {
 			hdfsInput = true;
 		}
 
+		BioHibCompression compression = BioHibCompression.NONE;
+		if (line.hasOption("c")) {
+			try {
+				compression = BioHibCompression.valueOf(line.getOptionValue("c").toUpperCase());
+			} catch (IllegalArgumentException e) {
+				usage();
+			}
+		}
+
+		String[] indexKeys = null;
+		if (line.hasOption("i")) {
+			indexKeys = line.getOptionValue("i").split(",");
+		}
+
+		boolean blockAlign = line.hasOption("a") || line.hasOption("r");
+		long recordLength = 0;
+
+		int threads = 1;
+		long maxMemory = 256L * 1024 * 1024;
+		try {
+			if (line.hasOption("t")) {
+				threads = Math.max(Integer.parseInt(line.getOptionValue("t")), 1);
+			}
+			if (line.hasOption("m")) {
+				maxMemory = Long.parseLong(line.getOptionValue("m")) * 1024 * 1024;
+			}
+			if (line.hasOption("r")) {
+				recordLength = Long.parseLong(line.getOptionValue("r"));
+			}
+		} catch (NumberFormatException e) {
+			usage();
+		}
+
 		System.out.println("Input image directory: " + imageDir);
 		System.out.println("Input FS: " + (hdfsInput ? "HDFS" : "local FS"));
 		System.out.println("Output HIB: " + outputHib);
 		System.out.println("Overwrite HIB if it exists: " + (overwrite ? "true" : "false"));
+		System.out.println("Image data compression: " + compression);
+		if (indexKeys != null) {
+			System.out.println("Inverted index keys: " + Arrays.toString(indexKeys));
+		}
+		System.out.println("Reader threads: " + threads);
+		System.out.println("Align image records to blocks: " + (blockAlign ? "true" : "false"));
 
 		Configuration conf = new Configuration();
+		if (recordLength > 0) {
+			conf.setLong("hipi.bundle.block.record.length", recordLength);
+		}
 		FileSystem fs = FileSystem.get(conf);
+		int prefixLength = conf.getInt("hipi.bundle.header.prefix", 1024 * 1024);
 
+		List<ImportTask> tasks = new ArrayList<ImportTask>();
 		if (hdfsInput) {
 
 			FileStatus[] files = fs.listStatus(new Path(imageDir));
@@ -87,33 +321,13 @@ public class BioHibImport {
 			}
 			Arrays.sort(files);
 
-			BioHipiImageBundle hib = new BioHipiImageBundle(new Path(outputHib), conf);
-			hib.openForWrite(overwrite);
-
 			for (FileStatus file : files) {
-				FSDataInputStream fdis = fs.open(file.getPath());
-				String source = file.getPath().toString();
-				HashMap<String, String> metaData = new HashMap<String,String>();
-				metaData.put(BioHipiKeyMetaData.SOURCE, source);
-				String fileName = file.getPath().getName().toLowerCase();
-				String suffix = fileName.substring(fileName.lastIndexOf('.'));
-				if (suffix.compareTo(".jpg") == 0 || suffix.compareTo(".jpeg") == 0) {
-					hib.addImage(fdis, BioHipiImageFormat.JPEG, metaData);
-					System.out.println(" ** added: " + fileName);
-				} else if (suffix.compareTo(".png") == 0) {
-					hib.addImage(fdis, BioHipiImageFormat.PNG, metaData);
-					System.out.println(" ** added: " + fileName);
-				} else if (suffix.compareTo(".nii") == 0) {
-					hib.addImage(fdis, BioHipiImageFormat.NIFTI, metaData);
-					System.out.println(" ** added: " + fileName);
-				} else if (suffix.compareTo(".dcm") == 0) {
-					hib.addImage(fdis, BioHipiImageFormat.DICOM, metaData);
-					System.out.println(" ** added: " + fileName);
+				BioHipiImageFormat format = getImageFormat(file.getPath().getName());
+				if (format != null) {
+					tasks.add(new ImportTask(fs, file.getPath(), file.getPath().toString(), file.getLen(), format, prefixLength));
 				}
 			}
 
-			hib.close();
-
 		} else {
 
 			File folder = new File(imageDir);
@@ -126,33 +340,27 @@ public class BioHibImport {
 			
 			Arrays.sort(files);
 
-			BioHipiImageBundle hib = new BioHipiImageBundle(new Path(outputHib), conf);
-			hib.openForWrite(overwrite);
-
+			FileSystem localFs = FileSystem.getLocal(conf).getRawFileSystem();
 			for (File file : files) {
-				FileInputStream fis = new FileInputStream(file);
-				String localPath = file.getPath();
-				HashMap<String, String> metaData = new HashMap<String,String>();
-				metaData.put(BioHipiKeyMetaData.SOURCE, localPath);
-				String fileName = file.getName().toLowerCase();
-				String suffix = fileName.substring(fileName.lastIndexOf('.'));
-				if (suffix.compareTo(".jpg") == 0 || suffix.compareTo(".jpeg") == 0) {
-					hib.addImage(fis, BioHipiImageFormat.JPEG, metaData);
-					System.out.println(" ** added: " + fileName);
-				} else if (suffix.compareTo(".png") == 0) {
-					hib.addImage(fis, BioHipiImageFormat.PNG, metaData);
-					System.out.println(" ** added: " + fileName);
-				} else if (suffix.compareTo(".nii") == 0) {
-					hib.addImage(fis, BioHipiImageFormat.NIFTI, metaData);
-					System.out.println(" ** added: " + fileName);
-				} else if (suffix.compareTo(".dcm") == 0) {
-					hib.addImage(fis, BioHipiImageFormat.DICOM, metaData);
-					System.out.println(" ** added: " + fileName);
+				BioHipiImageFormat format = getImageFormat(file.getName());
+				if (format != null) {
+					tasks.add(new ImportTask(localFs, new Path(file.getAbsoluteFile().toURI()), file.getPath(), file.length(), format, prefixLength));
 				}
 			}
 
-			hib.close();
+		}
 
+		BioHipiImageBundle hib = new BioHipiImageBundle(new Path(outputHib), conf);
+		hib.setCompression(compression);
+		if (indexKeys != null) {
+			hib.setInvertedIndexKeys(indexKeys);
+		}
+		hib.setBlockAlignment(blockAlign);
+		hib.openForWrite(overwrite);
+		try {
+			importImages(tasks, hib, threads, maxMemory);
+		} finally {
+			hib.close();
 		}
 
 		System.out.println("Created: " + outputHib + " and " + outputHib + ".dat");
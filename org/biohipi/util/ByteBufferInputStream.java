@@ -0,0 +1,77 @@
+package org.biohipi.util;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An {@link InputStream} that reads from the remaining bytes of a {@link ByteBuffer}
+ * without copying them. Reading advances a private duplicate of the buffer, so the
+ * position and limit of the buffer passed to the constructor are never modified.
+ */
+public class ByteBufferInputStream extends InputStream {
+
+	private final ByteBuffer buffer;
+
+	/**
+	 * Creates a stream over the bytes between the current position and the limit
+	 * of a buffer.
+	 *
+	 * @param buffer source of the stream, may be heap, direct or memory-mapped
+	 */
+	public ByteBufferInputStream(ByteBuffer buffer) {
+		this.buffer = buffer.duplicate();
+		this.buffer.mark();
+	}
+
+	@Override
+	public int read() {
+		if (!buffer.hasRemaining()) {
+			return -1;
+		}
+		return buffer.get() & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) {
+		if (len == 0) {
+			return 0;
+		}
+		if (!buffer.hasRemaining()) {
+			return -1;
+		}
+		len = Math.min(len, buffer.remaining());
+		buffer.get(b, off, len);
+		return len;
+	}
+
+	@Override
+	public long skip(long n) {
+		if (n <= 0) {
+			return 0;
+		}
+		int skipped = (int) Math.min(n, buffer.remaining());
+		buffer.position(buffer.position() + skipped);
+		return skipped;
+	}
+
+	@Override
+	public int available() {
+		return buffer.remaining();
+	}
+
+	@Override
+	public boolean markSupported() {
+		return true;
+	}
+
+	@Override
+	public synchronized void mark(int readlimit) {
+		buffer.mark();
+	}
+
+	@Override
+	public synchronized void reset() {
+		buffer.reset();
+	}
+
+}
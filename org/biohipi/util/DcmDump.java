@@ -18,7 +18,7 @@ public class DcmDump implements DicomInputHandler {
 	private static final int DEFAULT_WIDTH = 78;
 
 	private int width;
-	private static StringBuilder stringBuilder;
+	private final StringBuilder stringBuilder;
 
 	public DcmDump() {
 		width = DEFAULT_WIDTH;
@@ -54,6 +54,15 @@ public class NiftiVolume
 
 
 	public static NiftiVolume read(InputStream ip) throws IOException
+	{
+		return read(ip, null);
+	}
+
+	/**
+	 * Reads a volume, reusing the data array of an existing volume if its
+	 * dimensions match those of the volume read.
+	 */
+	public static NiftiVolume read(InputStream ip, NiftiVolume reuse) throws IOException
 	{
 		NiftiHeader hdr = NiftiHeader.read(ip);
 
@@ -73,7 +82,17 @@ public class NiftiVolume
 		if (dim == 0)
 			dim = 1;
 
-		NiftiVolume out = new NiftiVolume(hdr);
+		NiftiVolume out;
+		if (reuse != null && nx > 0 && ny > 0 && nz > 0
+				&& reuse.data.length == nx && reuse.data[0].length == ny
+				&& reuse.data[0][0].length == nz && reuse.data[0][0][0].length == dim)
+		{
+			// Every voxel is overwritten below
+			out = reuse;
+			out.header = hdr;
+		}
+		else
+			out = new NiftiVolume(hdr);
 		DataInput di = hdr.little_endian ? new LEDataInputStream(is) : new DataInputStream(is);
 
 		for (int d = 0; d < dim; d++)